@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import foo.joeledstrom.spreadsheets.Worksheet.RowUploadToken;
+
+// Request bodies written to a stream that only counts the bytes, see ParseBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class BodyBenchmark {
+
+    // only batchUpload depends on the row count
+    @State(Scope.Benchmark)
+    public static class Batch {
+        @Param({ "1000", "10000", "100000" })
+        int rows;
+
+        Worksheet worksheet;
+        List<RowUploadToken> tokens;
+
+        @Setup
+        public void setUp() {
+            worksheet = new Worksheet(null, "od6", "Sheet1", BenchmarkFeeds.LIST_FEED, BenchmarkFeeds.CELLS_FEED, null,
+                                      String.valueOf(rows + 1), String.valueOf(BenchmarkFeeds.COLUMNS));
+            tokens = BenchmarkFeeds.uploadTokens(rows);
+        }
+    }
+
+    private Map<String, String> values;
+    private WorksheetRow row;
+
+    @Setup
+    public void setUp() {
+        values = BenchmarkFeeds.rowValues(42);
+        row = new WorksheetRow(null, "\"etag\"", BenchmarkFeeds.LIST_FEED + "/row",
+                               BenchmarkFeeds.LIST_FEED + "/row/v", values);
+    }
+
+    @Benchmark
+    public long batchUpload(Batch batch) throws IOException {
+        return BenchmarkFeeds.write(batch.worksheet.batchContent(batch.tokens));
+    }
+
+    @Benchmark
+    public long addRow() throws IOException {
+        return BenchmarkFeeds.write(Worksheet.rowContent(values));
+    }
+
+    @Benchmark
+    public long commitChanges() throws IOException {
+        return BenchmarkFeeds.write(row.changesContent());
+    }
+}
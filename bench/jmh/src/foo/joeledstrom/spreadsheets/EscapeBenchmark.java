@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Utils.encodeXML/decodeXML, see ParseBenchmark. The strings are fields so they aren't constant folded.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class EscapeBenchmark {
+
+    private String plain = "Plain cell value without anything to escape 1234567890";
+    private String markup = "<b>Tom & \"Jerry\"</b> aren't <i>escaped</i> & neither is this";
+    private String encoded = Utils.encodeXML(markup);
+
+    @Benchmark
+    public String encodePlain() {
+        return Utils.encodeXML(plain);
+    }
+
+    @Benchmark
+    public String encodeMarkup() {
+        return Utils.encodeXML(markup);
+    }
+
+    @Benchmark
+    public String decode() {
+        return Utils.decodeXML(encoded);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xmlpull.v1.XmlPullParserException;
+
+import foo.joeledstrom.spreadsheets.Worksheet.ListEntry;
+
+// ListEntry.getValues() on entries parsed from the fixture feed up front, see ParseBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = "-Xmx2g")
+public class ListEntryBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    int rows;
+
+    private List<ListEntry> entries;
+
+    @Setup
+    public void setUp() throws IOException, XmlPullParserException {
+        entries = BenchmarkFeeds.parseEntries(BenchmarkFeeds.fixtureFeed(rows));
+    }
+
+    @Benchmark
+    public void getValues(Blackhole blackhole) throws XmlPullParserException {
+        for (ListEntry entry : entries)
+            blackhole.consume(entry.getValues());
+    }
+}
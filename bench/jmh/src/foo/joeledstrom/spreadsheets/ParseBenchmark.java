@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.google.api.client.http.xml.atom.AtomFeedParser;
+
+import foo.joeledstrom.spreadsheets.Worksheet.ListEntry;
+import foo.joeledstrom.spreadsheets.Worksheet.ListFeed;
+
+// JMH benchmarks for the hot paths of the library on a desktop JVM: list feed parsing (this class and
+// ListEntryBenchmark), request bodies (BodyBenchmark) and XML escaping (EscapeBenchmark).
+//
+// They live in the same package to reach the package-private parts, but outside src/ so they are never
+// packaged into the Android app. Compile src/ first, then the benchmarks with jmh-core and
+// jmh-generator-annprocess on the classpath (javac runs the annotation processor, which writes the
+// generated benchmark classes and META-INF/BenchmarkList). A desktop JVM also needs an XmlPull
+// implementation, kxml2 for instance, Android provides one. Run from the project root, -prof gc adds the
+// bytes allocated per op:
+//
+//   javac -cp bin:libs/*:jmh-core.jar:jmh-generator-annprocess.jar -d bench-bin $(find bench/jmh/src -name '*.java')
+//   java -cp bench-bin:bin:libs/*:jmh-core.jar:jopt-simple.jar:commons-math3.jar:kxml2.jar \
+//        org.openjdk.jmh.Main -prof gc [regexp]
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = "-Xmx2g")
+public class ParseBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    int rows;
+
+    // the generated feed, or the fixture's entries repeated
+    @Param({ "generated", "fixture" })
+    String feed;
+
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        bytes = BenchmarkFeeds.feed(feed, rows);
+    }
+
+    // same steps as Worksheet.queryRows(..) without the fast list parser
+    @Benchmark
+    public void atomFeedParser(Blackhole blackhole) throws IOException, XmlPullParserException {
+        AtomFeedParser<ListFeed, ListEntry> parser = BenchmarkFeeds.listFeedParser(bytes);
+
+        RowSchema.Interner interner = new RowSchema.Interner();
+        while (true) {
+            ListEntry entry = parser.parseNextEntry();
+            if (entry == null)
+                break;
+
+            Map<String, String> values = entry.getValues();
+            RowSchema schema = interner.schemaFor(values.keySet());
+            blackhole.consume(new WorksheetRow(null, entry.etag, entry.id, entry.getEditUrl(),
+                                               schema, interner.toValues(schema, values)));
+        }
+        parser.close();
+    }
+
+    @Benchmark
+    public void listFeedDecoder(Blackhole blackhole) throws IOException, XmlPullParserException {
+        ListFeedDecoder decoder = new ListFeedDecoder(null, new ByteArrayInputStream(bytes));
+        while (true) {
+            WorksheetRow row = decoder.next();
+            if (row == null)
+                break;
+            blackhole.consume(row);
+        }
+        decoder.close();
+    }
+}
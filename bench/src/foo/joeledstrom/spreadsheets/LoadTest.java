@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+import foo.joeledstrom.spreadsheets.SpreadsheetsService.FeedIterator;
+
+// End-to-end load test of the public operations against an in-process StandInServer.
+// Each operation is run by a number of threads for a fixed time, and its throughput and
+// p50/p99 latency are printed, followed by the per request numbers of a MetricsRecorder.
+// Needs an XmlPull implementation on the classpath, see ParseBenchmark.
+//
+//   java -cp ... foo.joeledstrom.spreadsheets.LoadTest threads=8 seconds=10 rows=1000 latency=20 jitter=10
+//                                                      bandwidth=1000000 errors=0.01 transport=pooled gzip=true
+public class LoadTest {
+
+    private static final List<String> COLUMNS = Arrays.asList("Id", "Name", "Status", "Amount");
+
+    interface Operation {
+        // true if the call succeeded, false on a conflict (eg. commitChanges() returning false), null if
+        // the thread has nothing left to do (it stops, and the iteration isn't counted)
+        Boolean run(int thread, int iteration) throws Exception;
+    }
+
+    private final int threads;
+    private final long millis;
+
+    // per thread state for the write operations
+    private final List<List<WorksheetRow>> ownRows = new ArrayList<List<WorksheetRow>>();
+    private final List<List<WorksheetRow>> addedRows = new ArrayList<List<WorksheetRow>>();
+
+    LoadTest(int threads, long millis) {
+        this.threads = threads;
+        this.millis = millis;
+        for (int i = 0; i < threads; i++) {
+            ownRows.add(new ArrayList<WorksheetRow>());
+            addedRows.add(Collections.synchronizedList(new ArrayList<WorksheetRow>()));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals != -1)
+                options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        int threads = Integer.parseInt(option(options, "threads", "4"));
+        int seconds = Integer.parseInt(option(options, "seconds", "10"));
+        int rows = Integer.parseInt(option(options, "rows", "1000"));
+
+        StandInServer server = new StandInServer();
+        server.start();
+
+        try {
+            TransportProvider transport = option(options, "transport", "net").equals("pooled")
+                    ? new PooledTransportProvider() : TransportProvider.of(new NetHttpTransport());
+            SpreadsheetsService service = new SpreadsheetsService("LoadTest", transport);
+            service.setTokens("writely", "wise");
+            service.setBaseUrls(server.getSpreadsheetsBaseUrl(), server.getDocumentsBaseUrl());
+            service.setRequestCompression(Boolean.parseBoolean(option(options, "gzip", "false")));
+            service.warmUp();
+
+            Worksheet worksheet = setUp(service, rows);
+            checkConditionalGets(service, worksheet);
+
+            // faults only after the set up
+            server.setLatency(Long.parseLong(option(options, "latency", "0")),
+                              Long.parseLong(option(options, "jitter", "0")));
+            server.setBandwidth(Long.parseLong(option(options, "bandwidth", "0")));
+            server.setErrorRate(Double.parseDouble(option(options, "errors", "0")));
+
+            MetricsRecorder metrics = new MetricsRecorder();
+            service.addRequestListener(metrics);
+
+            new LoadTest(threads, seconds * 1000L).run(service, worksheet);
+
+            System.out.println();
+            for (MetricsRecorder.Snapshot snapshot : metrics.snapshot().values())
+                System.out.println(snapshot);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static Worksheet setUp(SpreadsheetsService service, int rows) throws Exception {
+        service.createSpreadsheet("LoadTest", false);
+        Spreadsheet spreadsheet = service.getSpreadsheets("LoadTest").getEntries().get(0);
+        Worksheet worksheet = spreadsheet.addWorksheet("Data", COLUMNS);
+
+        List<Map<String, String>> values = new ArrayList<Map<String, String>>();
+        for (int i = 0; i < rows; i++)
+            values.add(row(i));
+        worksheet.addRows(values);
+
+        return worksheet;
+    }
+
+    // The caches (rows, worksheet and spreadsheet lists, replicas, WorksheetSync) only save anything if ETags
+    // reach the client and If-None-Match gets a 304, so stop before measuring if that isn't the case.
+    private static void checkConditionalGets(SpreadsheetsService service, Worksheet worksheet) throws Exception {
+        Spreadsheet spreadsheet = service.getSpreadsheets("LoadTest").getEntries().get(0);
+        worksheet.getRows().getEntries();
+        spreadsheet.getWorksheets().getEntries();
+
+        final List<RequestEvent> events = Collections.synchronizedList(new ArrayList<RequestEvent>());
+        RequestListener listener = new RequestListener() {
+            public void onRequest(RequestEvent event) {
+                events.add(event);
+            }
+        };
+        service.addRequestListener(listener);
+        try {
+            worksheet.getRows().getEntries();
+            spreadsheet.getWorksheets().getEntries();
+        } finally {
+            service.removeRequestListener(listener);
+        }
+
+        for (String operation : Arrays.asList(RequestEvent.GET_ROWS, RequestEvent.GET_WORKSHEETS)) {
+            int status = -1;
+            for (RequestEvent event : events) {
+                if (event.getOperation().equals(operation))
+                    status = event.getStatusCode();
+            }
+            if (status != 304)
+                throw new IllegalStateException("repeated " + operation + " got " + status + " instead of 304");
+        }
+    }
+
+    static Map<String, String> row(int i) {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        values.put("id", String.valueOf(i));
+        values.put("name", "Name " + i);
+        values.put("status", String.valueOf(i % 10));
+        values.put("amount", String.valueOf(i * 7 % 1000));
+        return values;
+    }
+
+    void run(final SpreadsheetsService service, final Worksheet worksheet) throws Exception {
+        final Spreadsheet spreadsheet = service.getSpreadsheets("LoadTest").getEntries().get(0);
+
+        System.out.println(String.format("%-24s %8s %10s %10s %10s %8s %8s",
+                                         "operation", "ops", "ops/s", "p50 ms", "p99 ms", "conflict", "errors"));
+
+        // reads
+
+        measure("getSpreadsheets", new Operation() {
+            public Boolean run(int thread, int iteration) throws Exception {
+                service.getSpreadsheets().getEntries();
+                return true;
+            }
+        });
+        measure("getWorksheets", new Operation() {
+            public Boolean run(int thread, int iteration) throws Exception {
+                spreadsheet.getWorksheets().getEntries();
+                return true;
+            }
+        });
+        measure("getRows", new Operation() {
+            public Boolean run(int thread, int iteration) throws Exception {
+                worksheet.getRows().getEntries();
+                return true;
+            }
+        });
+        measure("getRows uncached", new Operation() {
+            public Boolean run(int thread, int iteration) throws Exception {
+                worksheet.getRows(null, null, false, null).getEntries();
+                return true;
+            }
+        });
+        measure("getRows sq", new Operation() {
+            public Boolean run(int thread, int iteration) throws Exception {
+                worksheet.getRows("status = " + iteration % 10 + " and amount > 500", "amount", true, null)
+                    .getEntries();
+                return true;
+            }
+        });
+        measure("getRows columns", new Operation() {
+            public Boolean run(int thread, int iteration) throws Exception {
+                worksheet.getRows(Arrays.asList("name", "amount"), null, null, false).getEntries();
+                return true;
+            }
+        });
+        measure("readRange", new Operation() {
+            public Boolean run(int thread, int iteration) throws Exception {
+                int last = worksheet.getRowCount();
+                worksheet.readRange(Math.max(2, last - 99), last, 2, 3); // name and status of the last 100 rows
+                return true;
+            }
+        });
+        measure("getRowsParallel", new Operation() {
+            public Boolean run(int thread, int iteration) throws Exception {
+                worksheet.getRowsParallel(null, null, false, 250, 4, true).getEntries();
+                return true;
+            }
+        });
+
+        // writes, every thread updates its own rows
+
+        FeedIterator<WorksheetRow> all = worksheet.getRows(null, null, false, null);
+        int index = 0;
+        for (WorksheetRow row : all.getEntries())
+            ownRows.get(index++ % threads).add(row);
+
+        measure("commitChanges", new Operation() {
+            public Boolean run(int thread, int iteration) throws Exception {
+                List<WorksheetRow> rows = ownRows.get(thread);
+                WorksheetRow row = rows.get(iteration % rows.size());
+                row.setValue("amount", String.valueOf(iteration));
+                return row.commitChanges();
+            }
+        });
+        measure("addRow", new Operation() {
+            public Boolean run(int thread, int iteration) throws Exception {
+                addedRows.get(thread).add(worksheet.addRow(row(iteration)));
+                return true;
+            }
+        });
+        measure("commitDelete", new Operation() {
+            public Boolean run(int thread, int iteration) throws Exception {
+                List<WorksheetRow> rows = addedRows.get(thread);
+                if (rows.isEmpty())
+                    return null; // deleted everything addRow added
+                return rows.remove(rows.size() - 1).commitDelete();
+            }
+        });
+        measure("addRows 100", new Operation() {
+            public Boolean run(int thread, int iteration) throws Exception {
+                List<Map<String, String>> values = new ArrayList<Map<String, String>>();
+                for (int i = 0; i < 100; i++)
+                    values.add(row(iteration * 100 + i));
+                return worksheet.addRows(values).isEmpty();
+            }
+        });
+    }
+
+    private void measure(String name, final Operation operation) throws InterruptedException {
+        final long end = System.nanoTime() + millis * 1000000L;
+        final long[][] latencies = new long[threads][];
+        final int[] counts = new int[threads];
+        final AtomicLong conflicts = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicReference<Exception> firstError = new AtomicReference<Exception>();
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        long start = System.nanoTime();
+
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                public void run() {
+                    long[] own = new long[1024];
+                    int count = 0;
+                    try {
+                        while (System.nanoTime() < end) {
+                            long before = System.nanoTime();
+                            try {
+                                Boolean succeeded = operation.run(thread, count);
+                                if (succeeded == null)
+                                    break;
+                                if (!succeeded)
+                                    conflicts.incrementAndGet();
+                            } catch (Exception e) {
+                                errors.incrementAndGet();
+                                firstError.compareAndSet(null, e);
+                            }
+                            if (count == own.length) {
+                                long[] grown = new long[own.length * 2];
+                                System.arraycopy(own, 0, grown, 0, own.length);
+                                own = grown;
+                            }
+                            own[count++] = System.nanoTime() - before;
+                        }
+                    } finally {
+                        latencies[thread] = own;
+                        counts[thread] = count;
+                        done.countDown();
+                    }
+                }
+            }, "LoadTest " + name + " " + t).start();
+        }
+        done.await();
+
+        long elapsed = System.nanoTime() - start;
+
+        int total = 0;
+        for (int count : counts)
+            total += count;
+        long[] all = new long[total];
+        int offset = 0;
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(latencies[t], 0, all, offset, counts[t]);
+            offset += counts[t];
+        }
+        Arrays.sort(all);
+
+        System.out.println(String.format("%-24s %8d %10.1f %10.2f %10.2f %8d %8d", name, total,
+                                         total * 1e9 / elapsed, percentile(all, 50), percentile(all, 99),
+                                         conflicts.get(), errors.get()));
+        if (firstError.get() != null)
+            System.out.println("    first error: " + firstError.get());
+    }
+
+    private static double percentile(long[] sorted, int percent) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int)Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+}
@@ -0,0 +1,1017 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+// In-process stand-in for the parts of the Spreadsheets and Documents List APIs that SpreadsheetsService,
+// Spreadsheet, Worksheet and WorksheetRow use: the spreadsheets, worksheets, list, cells and cells/batch feeds
+// plus spreadsheet creation. Everything is kept in memory.
+//
+// Like the real service it sends ETags, answers If-None-Match with 304 and a failed If-Match with 412.
+// Latency, bandwidth and a rate of injected 503 errors can be configured to see how the client behaves.
+// Only what the library sends is understood, eg. sq supports comparisons joined with "and" / "or"
+// (no parentheses), and the fields parameter only selects gsx: columns.
+//
+// Point the service at it with
+//   service.setBaseUrls(server.getSpreadsheetsBaseUrl(), server.getDocumentsBaseUrl())
+//
+// HTTP is spoken directly over sockets (HTTP/1.1 with keep-alive, Content-Length or chunked request bodies)
+// instead of through com.sun.net.httpserver, which rewrites header names ("ETag" to "Etag"), and the
+// client looks them up case sensitively. See LoadTest.
+public class StandInServer {
+
+    private static final String ATOM_NS = "http://www.w3.org/2005/Atom";
+    private static final String GS_NS = "http://schemas.google.com/spreadsheets/2006";
+    private static final String GSX_NS = "http://schemas.google.com/spreadsheets/2006/extended";
+    private static final String BATCH_NS = "http://schemas.google.com/gdata/batch";
+
+    private static final String FEED_START = "<?xml version='1.0' encoding='UTF-8'?>"
+        + "<feed xmlns='http://www.w3.org/2005/Atom' xmlns:openSearch='http://a9.com/-/spec/opensearch/1.1/' "
+        + "xmlns:gs='http://schemas.google.com/spreadsheets/2006' "
+        + "xmlns:gsx='http://schemas.google.com/spreadsheets/2006/extended' "
+        + "xmlns:gd='http://schemas.google.com/g/2005' xmlns:batch='http://schemas.google.com/gdata/batch'";
+    private static final String ENTRY_START = "<?xml version='1.0' encoding='UTF-8'?>"
+        + "<entry xmlns='http://www.w3.org/2005/Atom' xmlns:gs='http://schemas.google.com/spreadsheets/2006' "
+        + "xmlns:gsx='http://schemas.google.com/spreadsheets/2006/extended' xmlns:gd='http://schemas.google.com/g/2005'";
+
+    private static final Pattern COMPARISON =
+        Pattern.compile("\\s*([\\w.-]+)\\s*(<=|>=|!=|<>|=|<|>)\\s*(?:\"([^\"]*)\"|(\\S+))\\s*");
+    private static final Pattern GSX_FIELD = Pattern.compile("gsx:([\\w.-]+)");
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final String base;
+    private final Set<Socket> connections = new HashSet<Socket>(); // guarded by itself
+
+    // all state is guarded by this
+    private final Map<String, SheetData> sheets = new LinkedHashMap<String, SheetData>();
+    private int nextId = 1;
+
+    private volatile long latencyMillis;
+    private volatile long latencyJitterMillis;
+    private volatile long bytesPerSecond; // 0 is unlimited
+    private volatile double errorRate;
+    private volatile boolean gzipRequests = true;
+    private final Random random = new Random();
+
+    private static class SheetData {
+        String key;
+        String title;
+        final Map<String, WorksheetData> worksheets = new LinkedHashMap<String, WorksheetData>();
+    }
+
+    private static class WorksheetData {
+        String id;
+        String title;
+        int rowCount;
+        int colCount;
+        int version;
+        int feedVersion;
+        final Map<Integer, String> header = new TreeMap<Integer, String>(); // row 1, column -> value
+        final List<RowData> rows = new ArrayList<RowData>(); // row 2 and below
+    }
+
+    private static class RowData {
+        int id;
+        int version;
+        final Map<Integer, String> cells = new TreeMap<Integer, String>();
+
+        boolean isEmpty() {
+            for (String value : cells.values()) {
+                if (value.length() != 0)
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private static class Exchange {
+        String method;
+        URI uri;
+        final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        byte[] body;
+        boolean keepAlive;
+    }
+
+    private static class Response {
+        final int status;
+        final String etag;
+        final String body;
+
+        Response(int status, String etag, String body) {
+            this.status = status;
+            this.etag = etag;
+            this.body = body;
+        }
+    }
+
+    public StandInServer() throws IOException {
+        this(0);
+    }
+
+    // port 0 picks a free port
+    public StandInServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 128, InetAddress.getByName("127.0.0.1"));
+        base = "http://127.0.0.1:" + serverSocket.getLocalPort();
+        executor = Executors.newCachedThreadPool(new DaemonThreadFactory("StandInServer"));
+    }
+
+    public void start() {
+        executor.execute(new Runnable() {
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // stopping anyway
+        }
+        synchronized (connections) {
+            for (Socket connection : connections)
+                closeQuietly(connection);
+            connections.clear();
+        }
+        executor.shutdownNow();
+    }
+
+    public String getSpreadsheetsBaseUrl() {
+        return base + "/feeds";
+    }
+
+    public String getDocumentsBaseUrl() {
+        return base + "/docs/feeds";
+    }
+
+    // every response is delayed by latency plus a random part of up to jitter
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.latencyJitterMillis = jitterMillis;
+    }
+
+    // response bodies are written at most this fast, 0 is unlimited
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    // fraction (0 - 1) of requests that fail with 503 Service Unavailable before doing anything
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    // if false, gzipped request bodies are read as they are and fail to parse (400), like on a server without support
+    public void setGzipRequestsAccepted(boolean accepted) {
+        this.gzipRequests = accepted;
+    }
+
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            final Socket connection;
+            try {
+                connection = serverSocket.accept();
+            } catch (IOException e) {
+                return; // closed by stop()
+            }
+            synchronized (connections) {
+                connections.add(connection);
+            }
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        serve(connection);
+                    } catch (IOException e) {
+                        // the client went away, or sent something that isn't HTTP
+                    } finally {
+                        synchronized (connections) {
+                            connections.remove(connection);
+                        }
+                        closeQuietly(connection);
+                    }
+                }
+            });
+        }
+    }
+
+    // the requests of one connection, one after the other
+    private void serve(Socket connection) throws IOException {
+        InputStream in = new BufferedInputStream(connection.getInputStream());
+        OutputStream out = new BufferedOutputStream(connection.getOutputStream());
+
+        while (true) {
+            Exchange exchange = readRequest(in, out);
+            if (exchange == null)
+                return;
+
+            byte[] requestBody = exchange.body;
+            if (gzipRequests && "gzip".equals(exchange.headers.get("Content-Encoding")))
+                requestBody = readFully(new GZIPInputStream(new ByteArrayInputStream(requestBody)));
+
+            Response response;
+            if (randomDouble() < errorRate) {
+                response = new Response(503, null, null);
+            } else if (!isAuthorized(exchange)) {
+                response = new Response(401, null, null);
+            } else {
+                try {
+                    response = dispatch(exchange, requestBody);
+                } catch (Exception e) {
+                    response = new Response(400, null, String.valueOf(e.getMessage()));
+                }
+            }
+
+            delay();
+            send(out, response, exchange.keepAlive);
+
+            if (!exchange.keepAlive)
+                return;
+        }
+    }
+
+    private boolean isAuthorized(Exchange exchange) {
+        String authorization = exchange.headers.get("Authorization");
+        return authorization != null && authorization.startsWith("GoogleLogin auth=");
+    }
+
+    private Response dispatch(Exchange exchange, byte[] body) throws Exception {
+        String method = exchange.method;
+        URI uri = exchange.uri;
+        String[] path = uri.getPath().substring(1).split("/");
+        Map<String, String> query = parseQuery(uri.getRawQuery());
+        String ifMatch = exchange.headers.get("If-Match");
+        String ifNoneMatch = exchange.headers.get("If-None-Match");
+
+        // /docs/feeds/default/private/full
+        if (path.length == 5 && path[0].equals("docs") && method.equals("POST"))
+            return createSpreadsheet(parse(body));
+
+        if (path.length < 2 || !path[0].equals("feeds"))
+            return new Response(404, null, null);
+
+        String feed = path[1];
+
+        // /feeds/spreadsheets/private/full
+        if (feed.equals("spreadsheets") && path.length == 4 && method.equals("GET"))
+            return spreadsheetsFeed(query.get("title"), "true".equals(query.get("title-exact")), ifNoneMatch);
+
+        // /feeds/worksheets/{key}/private/full[/{worksheet}/{version}]
+        if (feed.equals("worksheets") && path.length >= 5) {
+            SheetData sheet = sheet(path[2]);
+            if (sheet == null)
+                return new Response(404, null, null);
+            if (path.length == 5 && method.equals("GET"))
+                return worksheetsFeed(sheet, ifNoneMatch);
+            if (path.length == 5 && method.equals("POST"))
+                return addWorksheet(sheet, parse(body));
+
+            WorksheetData worksheet = worksheet(sheet, path.length > 5 ? path[5] : null);
+            if (worksheet == null)
+                return new Response(404, null, null);
+            if (method.equals("GET"))
+                return getWorksheet(sheet, worksheet);
+            if (method.equals("PUT"))
+                return updateWorksheet(sheet, worksheet, ifMatch, parse(body));
+            if (method.equals("DELETE"))
+                return deleteWorksheet(sheet, worksheet, ifMatch);
+        }
+
+        // /feeds/list/{key}/{worksheet}/private/full[/{row}/{version}]
+        if (feed.equals("list") && path.length >= 6) {
+            SheetData sheet = sheet(path[2]);
+            WorksheetData worksheet = sheet == null ? null : worksheet(sheet, path[3]);
+            if (worksheet == null)
+                return new Response(404, null, null);
+            if (path.length == 6 && method.equals("GET"))
+                return listFeed(sheet, worksheet, query, ifNoneMatch);
+            if (path.length == 6 && method.equals("POST"))
+                return addRow(sheet, worksheet, parse(body));
+
+            RowData row = row(worksheet, path.length > 6 ? path[6] : null);
+            if (row == null)
+                return new Response(404, null, null);
+            if (method.equals("PUT"))
+                return updateRow(sheet, worksheet, row, ifMatch, parse(body));
+            if (method.equals("DELETE"))
+                return deleteRow(worksheet, row, ifMatch);
+        }
+
+        // /feeds/cells/{key}/{worksheet}/private/full[/batch]
+        if (feed.equals("cells") && path.length >= 6) {
+            SheetData sheet = sheet(path[2]);
+            WorksheetData worksheet = sheet == null ? null : worksheet(sheet, path[3]);
+            if (worksheet == null)
+                return new Response(404, null, null);
+            if (path.length == 6 && method.equals("GET"))
+                return cellsFeed(sheet, worksheet, query, ifNoneMatch);
+            if (path.length == 7 && path[6].equals("batch") && method.equals("POST"))
+                return batchUpdate(sheet, worksheet, parse(body));
+        }
+
+        return new Response(404, null, null);
+    }
+
+
+    // spreadsheets
+
+    private synchronized Response createSpreadsheet(Document entry) {
+        SheetData sheet = new SheetData();
+        sheet.key = "key" + nextId++;
+        sheet.title = childText(entry.getDocumentElement(), ATOM_NS, "title");
+        sheets.put(sheet.key, sheet);
+
+        WorksheetData worksheet = newWorksheet("Sheet1", 100, 20);
+        sheet.worksheets.put(worksheet.id, worksheet);
+
+        StringBuilder xml = new StringBuilder(ENTRY_START).append('>');
+        spreadsheetEntry(xml, sheet);
+        return new Response(201, null, xml.append("</entry>").toString());
+    }
+
+    private synchronized Response spreadsheetsFeed(String title, boolean exact, String ifNoneMatch) {
+        StringBuilder xml = new StringBuilder(FEED_START).append('>');
+        for (SheetData sheet : sheets.values()) {
+            if (title != null) {
+                boolean matches = exact ? sheet.title.equals(title)
+                                        : sheet.title.toLowerCase().contains(title.toLowerCase());
+                if (!matches)
+                    continue;
+            }
+            xml.append("<entry>");
+            spreadsheetEntry(xml, sheet);
+            xml.append("</entry>");
+        }
+        return conditional(xml.append("</feed>").toString(), ifNoneMatch);
+    }
+
+    private void spreadsheetEntry(StringBuilder xml, SheetData sheet) {
+        String worksheets = base + "/feeds/worksheets/" + sheet.key + "/private/full";
+        xml.append("<id>").append(base).append("/feeds/spreadsheets/private/full/").append(sheet.key).append("</id>")
+           .append("<title type='text'>").append(Utils.encodeXML(sheet.title)).append("</title>")
+           .append("<content type='application/atom+xml;type=feed' src='").append(worksheets).append("'/>");
+    }
+
+
+    // worksheets
+
+    private WorksheetData newWorksheet(String title, int rowCount, int colCount) {
+        WorksheetData worksheet = new WorksheetData();
+        worksheet.id = "od" + nextId++;
+        worksheet.title = title;
+        worksheet.rowCount = rowCount;
+        worksheet.colCount = colCount;
+        return worksheet;
+    }
+
+    private synchronized Response worksheetsFeed(SheetData sheet, String ifNoneMatch) {
+        StringBuilder xml = new StringBuilder(FEED_START).append('>');
+        for (WorksheetData worksheet : sheet.worksheets.values()) {
+            xml.append("<entry>");
+            worksheetEntry(xml, sheet, worksheet);
+            xml.append("</entry>");
+        }
+        return conditional(xml.append("</feed>").toString(), ifNoneMatch);
+    }
+
+    private synchronized Response addWorksheet(SheetData sheet, Document entry) {
+        Element root = entry.getDocumentElement();
+        WorksheetData worksheet = newWorksheet(childText(root, ATOM_NS, "title"),
+                                               Integer.parseInt(childText(root, GS_NS, "rowCount")),
+                                               Integer.parseInt(childText(root, GS_NS, "colCount")));
+        sheet.worksheets.put(worksheet.id, worksheet);
+
+        StringBuilder xml = new StringBuilder(ENTRY_START).append('>');
+        worksheetEntry(xml, sheet, worksheet);
+        return new Response(201, null, xml.append("</entry>").toString());
+    }
+
+    private synchronized Response getWorksheet(SheetData sheet, WorksheetData worksheet) {
+        StringBuilder xml = new StringBuilder(ENTRY_START).append(" gd:etag='").append(attr(worksheetEtag(worksheet))).append("'>");
+        worksheetEntry(xml, sheet, worksheet);
+        return new Response(200, worksheetEtag(worksheet), xml.append("</entry>").toString());
+    }
+
+    private synchronized Response updateWorksheet(SheetData sheet, WorksheetData worksheet,
+                                                  String ifMatch, Document entry) {
+        if (!"*".equals(ifMatch) && !worksheetEtag(worksheet).equals(ifMatch))
+            return new Response(412, null, null);
+
+        Element root = entry.getDocumentElement();
+        worksheet.title = childText(root, ATOM_NS, "title");
+        worksheet.rowCount = Integer.parseInt(childText(root, GS_NS, "rowCount"));
+        worksheet.colCount = Integer.parseInt(childText(root, GS_NS, "colCount"));
+        worksheet.version++;
+
+        // shrinking drops the cells outside of the grid
+        while (worksheet.rows.size() > worksheet.rowCount - 1)
+            worksheet.rows.remove(worksheet.rows.size() - 1);
+        worksheet.header.keySet().retainAll(columns(worksheet.colCount));
+        for (RowData row : worksheet.rows)
+            row.cells.keySet().retainAll(columns(worksheet.colCount));
+        worksheet.feedVersion++;
+
+        StringBuilder xml = new StringBuilder(ENTRY_START).append(" gd:etag='").append(attr(worksheetEtag(worksheet))).append("'>");
+        worksheetEntry(xml, sheet, worksheet);
+        return new Response(200, worksheetEtag(worksheet), xml.append("</entry>").toString());
+    }
+
+    private synchronized Response deleteWorksheet(SheetData sheet, WorksheetData worksheet, String ifMatch) {
+        if (!"*".equals(ifMatch) && !worksheetEtag(worksheet).equals(ifMatch))
+            return new Response(412, null, null);
+
+        sheet.worksheets.remove(worksheet.id);
+        return new Response(200, null, null);
+    }
+
+    private void worksheetEntry(StringBuilder xml, SheetData sheet, WorksheetData worksheet) {
+        String path = sheet.key + "/" + worksheet.id + "/private/full";
+        xml.append("<id>").append(base).append("/feeds/worksheets/").append(sheet.key)
+           .append("/private/full/").append(worksheet.id).append("</id>")
+           .append("<title type='text'>").append(Utils.encodeXML(worksheet.title)).append("</title>")
+           .append("<content type='application/atom+xml;type=feed' src='").append(base).append("/feeds/list/")
+           .append(path).append("'/>")
+           .append("<link rel='http://schemas.google.com/spreadsheets/2006#listfeed' type='application/atom+xml' href='")
+           .append(base).append("/feeds/list/").append(path).append("'/>")
+           .append("<link rel='http://schemas.google.com/spreadsheets/2006#cellsfeed' type='application/atom+xml' href='")
+           .append(base).append("/feeds/cells/").append(path).append("'/>")
+           .append("<link rel='edit' type='application/atom+xml' href='").append(base).append("/feeds/worksheets/")
+           .append(sheet.key).append("/private/full/").append(worksheet.id).append('/').append(worksheet.version).append("'/>")
+           .append("<gs:rowCount>").append(worksheet.rowCount).append("</gs:rowCount>")
+           .append("<gs:colCount>").append(worksheet.colCount).append("</gs:colCount>");
+    }
+
+    // for the spreadsheets and worksheets feeds, the ETag is a hash of the feed
+    private static Response conditional(String feed, String ifNoneMatch) {
+        String etag = "W/\"" + Integer.toHexString(feed.hashCode()) + "\"";
+        if (etag.equals(ifNoneMatch))
+            return new Response(304, etag, null);
+        return new Response(200, etag, feed);
+    }
+
+    private static String worksheetEtag(WorksheetData worksheet) {
+        return "\"" + worksheet.id + "v" + worksheet.version + "\"";
+    }
+
+
+    // list feed
+
+    private synchronized Response listFeed(SheetData sheet, WorksheetData worksheet,
+                                           Map<String, String> query, String ifNoneMatch) {
+        String feedEtag = feedEtag(worksheet);
+
+        // the etag covers the whole worksheet, not the query
+        if (feedEtag.equals(ifNoneMatch))
+            return new Response(304, feedEtag, null);
+
+        final Map<String, Integer> columns = listColumns(worksheet);
+        List<RowData> rows = new ArrayList<RowData>();
+        for (RowData row : worksheet.rows) {
+            if (row.isEmpty())
+                break; // like the real list feed, the first empty row ends the table
+            if (query.get("sq") == null || matches(query.get("sq"), row, columns))
+                rows.add(row);
+        }
+
+        String orderby = query.get("orderby");
+        if (orderby != null && orderby.startsWith("column:")) {
+            final Integer column = columns.get(orderby.substring("column:".length()));
+            if (column != null) {
+                Collections.sort(rows, new Comparator<RowData>() {
+                    public int compare(RowData a, RowData b) {
+                        return WorksheetReplica.compareValues(a.cells.get(column), b.cells.get(column));
+                    }
+                });
+            }
+        }
+        if ("true".equals(query.get("reverse")))
+            Collections.reverse(rows);
+
+        int start = query.containsKey("start-index") ? Integer.parseInt(query.get("start-index")) : 1;
+        int max = query.containsKey("max-results") ? Integer.parseInt(query.get("max-results")) : Integer.MAX_VALUE;
+
+        List<String> projection = null;
+        if (query.get("fields") != null) {
+            projection = new ArrayList<String>();
+            Matcher field = GSX_FIELD.matcher(query.get("fields"));
+            while (field.find())
+                projection.add(field.group(1));
+        }
+
+        StringBuilder xml = new StringBuilder(FEED_START).append(" gd:etag='").append(attr(feedEtag)).append("'>");
+        if (projection == null) {
+            xml.append("<id>").append(base).append("/feeds/list/").append(sheet.key).append('/').append(worksheet.id)
+               .append("/private/full</id>")
+               .append("<title type='text'>").append(Utils.encodeXML(worksheet.title)).append("</title>")
+               .append("<openSearch:totalResults>").append(rows.size()).append("</openSearch:totalResults>")
+               .append("<openSearch:startIndex>").append(start).append("</openSearch:startIndex>");
+        }
+
+        for (int i = start - 1; i < rows.size() && i - (start - 1) < max; i++) {
+            xml.append("<entry gd:etag='").append(attr(rowEtag(rows.get(i)))).append("'>");
+            listEntry(xml, sheet, worksheet, rows.get(i), columns, projection);
+            xml.append("</entry>");
+        }
+        return new Response(200, feedEtag, xml.append("</feed>").toString());
+    }
+
+    private synchronized Response addRow(SheetData sheet, WorksheetData worksheet, Document entry) {
+        Map<String, Integer> columns = listColumns(worksheet);
+
+        int index = 0;
+        while (index < worksheet.rows.size() && !worksheet.rows.get(index).isEmpty())
+            index++;
+
+        RowData row = new RowData();
+        row.id = nextId++;
+        setListValues(row, entry, columns);
+
+        if (index < worksheet.rows.size())
+            worksheet.rows.set(index, row);
+        else
+            worksheet.rows.add(row);
+        if (worksheet.rowCount < index + 2)
+            worksheet.rowCount = index + 2; // the real service grows the grid too
+        worksheet.feedVersion++;
+
+        StringBuilder xml = new StringBuilder(ENTRY_START).append(" gd:etag='").append(attr(rowEtag(row))).append("'>");
+        listEntry(xml, sheet, worksheet, row, columns, null);
+        return new Response(201, rowEtag(row), xml.append("</entry>").toString());
+    }
+
+    private synchronized Response updateRow(SheetData sheet, WorksheetData worksheet, RowData row,
+                                            String ifMatch, Document entry) {
+        if (!"*".equals(ifMatch) && !rowEtag(row).equals(ifMatch))
+            return new Response(412, null, null);
+
+        Map<String, Integer> columns = listColumns(worksheet);
+        row.cells.clear();
+        setListValues(row, entry, columns);
+        row.version++;
+        worksheet.feedVersion++;
+
+        StringBuilder xml = new StringBuilder(ENTRY_START).append(" gd:etag='").append(attr(rowEtag(row))).append("'>");
+        listEntry(xml, sheet, worksheet, row, columns, null);
+        return new Response(200, rowEtag(row), xml.append("</entry>").toString());
+    }
+
+    private synchronized Response deleteRow(WorksheetData worksheet, RowData row, String ifMatch) {
+        if (!"*".equals(ifMatch) && !rowEtag(row).equals(ifMatch))
+            return new Response(412, null, null);
+
+        worksheet.rows.remove(row); // rows below move up, as in the real service
+        worksheet.feedVersion++;
+        return new Response(200, null, null);
+    }
+
+    private void listEntry(StringBuilder xml, SheetData sheet, WorksheetData worksheet, RowData row,
+                           Map<String, Integer> columns, List<String> projection) {
+        String id = base + "/feeds/list/" + sheet.key + "/" + worksheet.id + "/private/full/r" + row.id;
+        xml.append("<id>").append(id).append("</id>");
+        if (projection == null)
+            xml.append("<title type='text'>").append(row.id).append("</title>");
+        xml.append("<link rel='edit' type='application/atom+xml' href='").append(id).append('/')
+           .append(row.version).append("'/>");
+
+        for (Map.Entry<String, Integer> column : columns.entrySet()) {
+            if (projection != null && !projection.contains(column.getKey()))
+                continue;
+            String value = row.cells.get(column.getValue());
+            xml.append("<gsx:").append(column.getKey()).append('>')
+               .append(value == null ? "" : Utils.encodeXML(value))
+               .append("</gsx:").append(column.getKey()).append('>');
+        }
+    }
+
+    private void setListValues(RowData row, Document entry, Map<String, Integer> columns) {
+        NodeList children = entry.getDocumentElement().getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node child = children.item(i);
+            if (child.getNodeType() != Node.ELEMENT_NODE || !GSX_NS.equals(child.getNamespaceURI()))
+                continue;
+
+            Integer column = columns.get(child.getLocalName());
+            if (column != null)
+                row.cells.put(column, child.getTextContent());
+        }
+    }
+
+    // list feed name -> column number, from the header row
+    private static Map<String, Integer> listColumns(WorksheetData worksheet) {
+        Map<String, Integer> columns = new LinkedHashMap<String, Integer>();
+        for (Map.Entry<Integer, String> header : worksheet.header.entrySet()) {
+            String name = Worksheet.toListFeedName(header.getValue());
+            if (name.length() != 0 && !columns.containsKey(name))
+                columns.put(name, header.getKey());
+        }
+        return columns;
+    }
+
+    private static boolean matches(String sq, RowData row, Map<String, Integer> columns) {
+        for (String alternative : sq.split("(?i)\\s+or\\s+")) {
+            boolean all = true;
+            for (String condition : alternative.split("(?i)\\s+and\\s+")) {
+                Matcher comparison = COMPARISON.matcher(condition);
+                if (!comparison.matches())
+                    throw new IllegalArgumentException("Unsupported sq: " + sq);
+
+                Integer column = columns.get(comparison.group(1));
+                String value = column == null ? null : row.cells.get(column);
+                boolean numeric = comparison.group(3) == null;
+                String operand = numeric ? comparison.group(4) : comparison.group(3);
+                if (numeric && WorksheetReplica.parseNumber(operand) == null)
+                    throw new IllegalArgumentException("Unsupported sq: " + sq);
+
+                if (!RowQuery.evaluate(value, comparison.group(2), operand, numeric)) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all)
+                return true;
+        }
+        return false;
+    }
+
+    private static String rowEtag(RowData row) {
+        return "\"r" + row.id + "v" + row.version + "\"";
+    }
+
+    private static String feedEtag(WorksheetData worksheet) {
+        return "W/\"" + worksheet.id + "f" + worksheet.feedVersion + "\"";
+    }
+
+
+    // cells feed
+
+    private synchronized Response cellsFeed(SheetData sheet, WorksheetData worksheet,
+                                            Map<String, String> query, String ifNoneMatch) {
+        String feedEtag = feedEtag(worksheet);
+        if (feedEtag.equals(ifNoneMatch))
+            return new Response(304, feedEtag, null);
+
+        int minRow = query.containsKey("min-row") ? Integer.parseInt(query.get("min-row")) : 1;
+        int maxRow = query.containsKey("max-row") ? Integer.parseInt(query.get("max-row")) : worksheet.rowCount;
+        int minCol = query.containsKey("min-col") ? Integer.parseInt(query.get("min-col")) : 1;
+        int maxCol = query.containsKey("max-col") ? Integer.parseInt(query.get("max-col")) : worksheet.colCount;
+
+        String feed = base + "/feeds/cells/" + sheet.key + "/" + worksheet.id + "/private/full";
+        StringBuilder xml = new StringBuilder(FEED_START).append(" gd:etag='").append(attr(feedEtag)).append("'>")
+            .append("<id>").append(feed).append("</id>")
+            .append("<gs:rowCount>").append(worksheet.rowCount).append("</gs:rowCount>")
+            .append("<gs:colCount>").append(worksheet.colCount).append("</gs:colCount>");
+
+        for (int row = Math.max(minRow, 1); row <= maxRow && row <= worksheet.rows.size() + 1; row++) {
+            Map<Integer, String> cells = row == 1 ? worksheet.header : worksheet.rows.get(row - 2).cells;
+            for (Map.Entry<Integer, String> cell : cells.entrySet()) {
+                int col = cell.getKey();
+                if (col < minCol || col > maxCol || cell.getValue().length() == 0)
+                    continue; // empty cells aren't part of the feed
+                xml.append("<entry>");
+                cellEntry(xml, feed, row, col, cell.getValue());
+                xml.append("</entry>");
+            }
+        }
+        return new Response(200, feedEtag, xml.append("</feed>").toString());
+    }
+
+    private synchronized Response batchUpdate(SheetData sheet, WorksheetData worksheet, Document batch) {
+        String feed = base + "/feeds/cells/" + sheet.key + "/" + worksheet.id + "/private/full";
+        StringBuilder xml = new StringBuilder(FEED_START).append('>').append("<id>").append(feed).append("/batch</id>");
+
+        NodeList entries = batch.getDocumentElement().getElementsByTagNameNS(ATOM_NS, "entry");
+        for (int i = 0; i < entries.getLength(); i++) {
+            Element entry = (Element)entries.item(i);
+            String batchId = childText(entry, BATCH_NS, "id");
+            Element cell = (Element)entry.getElementsByTagNameNS(GS_NS, "cell").item(0);
+
+            int row = Integer.parseInt(cell.getAttribute("row"));
+            int col = Integer.parseInt(cell.getAttribute("col"));
+            String value = cell.getAttribute("inputValue");
+
+            xml.append("<entry><batch:id>").append(Utils.encodeXML(batchId)).append("</batch:id>")
+               .append("<batch:operation type='update'/>");
+
+            if (row < 1 || col < 1 || row > worksheet.rowCount || col > worksheet.colCount) {
+                xml.append("<batch:status code='400' reason='Bad request'/>");
+            } else {
+                setCell(worksheet, row, col, value);
+                xml.append("<batch:status code='200' reason='Success'/>");
+                cellEntry(xml, feed, row, col, value);
+            }
+            xml.append("</entry>");
+        }
+        worksheet.feedVersion++;
+
+        return new Response(200, null, xml.append("</feed>").toString());
+    }
+
+    private void setCell(WorksheetData worksheet, int row, int col, String value) {
+        if (row == 1) {
+            worksheet.header.put(col, value);
+            return;
+        }
+        while (worksheet.rows.size() < row - 1) {
+            RowData empty = new RowData();
+            empty.id = nextId++;
+            worksheet.rows.add(empty);
+        }
+        RowData data = worksheet.rows.get(row - 2);
+        data.cells.put(col, value);
+        data.version++;
+    }
+
+    private void cellEntry(StringBuilder xml, String feed, int row, int col, String value) {
+        String id = feed + "/R" + row + "C" + col;
+        xml.append("<id>").append(id).append("</id>")
+           .append("<link rel='edit' type='application/atom+xml' href='").append(id).append("'/>")
+           .append("<gs:cell row='").append(row).append("' col='").append(col)
+           .append("' inputValue='").append(attr(value)).append("'>").append(Utils.encodeXML(value))
+           .append("</gs:cell>");
+    }
+
+
+    // helpers
+
+    private synchronized SheetData sheet(String key) {
+        return sheets.get(key);
+    }
+
+    private synchronized WorksheetData worksheet(SheetData sheet, String id) {
+        return id == null ? null : sheet.worksheets.get(id);
+    }
+
+    private synchronized RowData row(WorksheetData worksheet, String id) {
+        if (id == null || !id.startsWith("r"))
+            return null;
+        int rowId = Integer.parseInt(id.substring(1));
+        for (RowData row : worksheet.rows) {
+            if (row.id == rowId)
+                return row;
+        }
+        return null;
+    }
+
+    private static List<Integer> columns(int count) {
+        List<Integer> columns = new ArrayList<Integer>(count);
+        for (int i = 1; i <= count; i++)
+            columns.add(i);
+        return columns;
+    }
+
+    private static Document parse(byte[] body) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(body));
+    }
+
+    private static String childText(Element parent, String namespace, String name) {
+        NodeList children = parent.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node child = children.item(i);
+            if (child.getNodeType() == Node.ELEMENT_NODE && namespace.equals(child.getNamespaceURI())
+                    && name.equals(child.getLocalName()))
+                return child.getTextContent();
+        }
+        throw new IllegalArgumentException("Missing element " + name);
+    }
+
+    private static String attr(String value) {
+        return Utils.encodeXML(value);
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> parameters = new HashMap<String, String>();
+        if (query == null)
+            return parameters;
+
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals == -1)
+                continue;
+            parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+                           URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+        }
+        return parameters;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            bytes.write(buffer, 0, read);
+        return bytes.toByteArray();
+    }
+
+    private double randomDouble() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    private void delay() {
+        long millis = latencyMillis;
+        if (latencyJitterMillis > 0)
+            millis += (long)(randomDouble() * latencyJitterMillis);
+        sleep(millis);
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0)
+            return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // null if the connection was closed before the next request
+    private static Exchange readRequest(InputStream in, OutputStream out) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null)
+            return null;
+
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3)
+            throw new IOException("Bad request line: " + requestLine);
+
+        Exchange exchange = new Exchange();
+        exchange.method = parts[0];
+        exchange.uri = URI.create(parts[1]);
+
+        for (String line = readLine(in); line != null && line.length() != 0; line = readLine(in)) {
+            int colon = line.indexOf(':');
+            if (colon != -1)
+                exchange.headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+        }
+
+        String connection = exchange.headers.get("Connection");
+        exchange.keepAlive = parts[2].equals("HTTP/1.1") ? !"close".equalsIgnoreCase(connection)
+                                                        : "keep-alive".equalsIgnoreCase(connection);
+
+        // Apache HttpClient asks before sending a body
+        if ("100-continue".equalsIgnoreCase(exchange.headers.get("Expect"))) {
+            out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("ISO-8859-1"));
+            out.flush();
+        }
+
+        String contentLength = exchange.headers.get("Content-Length");
+        if ("chunked".equalsIgnoreCase(exchange.headers.get("Transfer-Encoding")))
+            exchange.body = readChunked(in);
+        else if (contentLength != null)
+            exchange.body = readExactly(in, Integer.parseInt(contentLength));
+        else
+            exchange.body = new byte[0];
+
+        return exchange;
+    }
+
+    // without the line break, null at the end of the stream
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1)
+                return line.length() == 0 ? null : line.toString();
+            if (c != '\r')
+                line.append((char)c);
+        }
+        return line.toString();
+    }
+
+    private static byte[] readChunked(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        while (true) {
+            String sizeLine = readLine(in);
+            if (sizeLine == null)
+                throw new EOFException();
+            int semicolon = sizeLine.indexOf(';');
+            int size = Integer.parseInt((semicolon == -1 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+            if (size == 0)
+                break;
+            bytes.write(readExactly(in, size));
+            readLine(in); // the line break after the chunk
+        }
+        // trailers, up to the empty line
+        for (String line = readLine(in); line != null && line.length() != 0; line = readLine(in))
+            ;
+        return bytes.toByteArray();
+    }
+
+    private static byte[] readExactly(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        for (int offset = 0; offset < length; ) {
+            int read = in.read(bytes, offset, length - offset);
+            if (read == -1)
+                throw new EOFException();
+            offset += read;
+        }
+        return bytes;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 404: return "Not Found";
+            case 412: return "Precondition Failed";
+            case 503: return "Service Unavailable";
+            default:  return "Unknown";
+        }
+    }
+
+    // header names are written exactly like this, the client matches them case sensitively
+    private void send(OutputStream out, Response response, boolean keepAlive) throws IOException {
+        byte[] body = response.body == null || response.status == 304 ? new byte[0] : response.body.getBytes("UTF-8");
+
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.status).append(' ').append(reason(response.status)).append("\r\n");
+        head.append("Content-Type: application/atom+xml; charset=UTF-8\r\n");
+        if (response.etag != null)
+            head.append("ETag: ").append(response.etag).append("\r\n");
+        if (response.status != 304)
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        if (!keepAlive)
+            head.append("Connection: close\r\n");
+        head.append("\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+
+        long limit = bytesPerSecond;
+        if (limit <= 0 || body.length == 0) {
+            out.write(body);
+        } else {
+            // write in 1/20 s slices
+            int slice = (int)Math.max(1, limit / 20);
+            for (int offset = 0; offset < body.length; offset += slice) {
+                out.write(body, offset, Math.min(slice, body.length - offset));
+                out.flush();
+                sleep(50);
+            }
+        }
+        out.flush();
+    }
+}
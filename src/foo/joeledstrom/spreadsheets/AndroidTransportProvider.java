@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import com.google.api.client.extensions.android2.AndroidHttp;
+import com.google.api.client.http.HttpTransport;
+
+// HttpURLConnection on Gingerbread and later, the bundled Apache HttpClient before that
+// (see AndroidHttp.newCompatibleTransport()). Connection reuse is left to the platform.
+public class AndroidTransportProvider extends TransportProvider {
+
+    private final HttpTransport transport = AndroidHttp.newCompatibleTransport();
+
+    public HttpTransport getTransport() {
+        return transport;
+    }
+}
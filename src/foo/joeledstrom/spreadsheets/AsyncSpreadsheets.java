@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+
+// Runs the blocking operations on an executor and returns futures, instead of wrapping every call
+// in an AsyncTask. Failures (IOException, SpreadsheetsException) come out of get() wrapped in an
+// ExecutionException. Listeners can be run on the UI thread by passing an Executor that posts to a Handler:
+//
+//   AsyncSpreadsheets async = new AsyncSpreadsheets(service);
+//   final ListenableFuture<List<WorksheetRow>> rows = async.getRows(worksheet, "status = 3", null, false);
+//   rows.addListener(new Runnable() { ... rows.get() ... }, uiExecutor);
+//
+// The default executor has as many threads as the service's default maximum concurrency limit, so it
+// never holds back requests the service would let through as its limit grows (the threads are started
+// as needed). Operations beyond that queue in the executor, so thousands can be submitted without a thread
+// each. Pass an executor of your own if the maximum is raised with setConcurrencyLimits(..).
+public class AsyncSpreadsheets {
+
+    static final int DEFAULT_THREADS = SpreadsheetsService.DEFAULT_MAX_CONCURRENCY;
+
+    private final SpreadsheetsService service;
+    private final ExecutorService executor;
+
+    public AsyncSpreadsheets(SpreadsheetsService service) {
+        this(service, Executors.newFixedThreadPool(DEFAULT_THREADS, new DaemonThreadFactory("AsyncSpreadsheets")));
+    }
+
+    // the executor is shut down by shutdown()
+    public AsyncSpreadsheets(SpreadsheetsService service, ExecutorService executor) {
+        this.service = service;
+        this.executor = executor;
+    }
+
+    public SpreadsheetsService getService() {
+        return service;
+    }
+
+    // operations already submitted still run
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private <T> ListenableFuture<T> submit(Callable<T> operation) {
+        ListenableFutureTask<T> task = new ListenableFutureTask<T>(operation);
+        executor.execute(task);
+        return task;
+    }
+
+
+    public ListenableFuture<List<Spreadsheet>> getSpreadsheets(final String title, final Boolean exact) {
+        return submit(new Callable<List<Spreadsheet>>() {
+            public List<Spreadsheet> call() throws Exception {
+                return service.getSpreadsheets(title, exact).getEntries();
+            }
+        });
+    }
+
+    public ListenableFuture<List<Worksheet>> getWorksheets(final Spreadsheet spreadsheet) {
+        return submit(new Callable<List<Worksheet>>() {
+            public List<Worksheet> call() throws Exception {
+                return spreadsheet.getWorksheets().getEntries();
+            }
+        });
+    }
+
+    // see Worksheet.getRows(sq, orderby, reverse)
+    public ListenableFuture<List<WorksheetRow>> getRows(final Worksheet worksheet, final String sq,
+                                                        final String orderby, final boolean reverse) {
+        return submit(new Callable<List<WorksheetRow>>() {
+            public List<WorksheetRow> call() throws Exception {
+                return worksheet.getRows(sq, orderby, reverse).getEntries();
+            }
+        });
+    }
+
+    public ListenableFuture<WorksheetRow> addRow(final Worksheet worksheet, final Map<String, String> values) {
+        return submit(new Callable<WorksheetRow>() {
+            public WorksheetRow call() throws Exception {
+                return worksheet.addRow(values);
+            }
+        });
+    }
+
+    // batch upload, see Worksheet.addRows(..). The future holds the rows that failed.
+    public ListenableFuture<Collection<Map<String, String>>> addRows(final Worksheet worksheet,
+                                                                     final Iterable<Map<String, String>> rows) {
+        return submit(new Callable<Collection<Map<String, String>>>() {
+            public Collection<Map<String, String>> call() throws Exception {
+                return worksheet.addRows(rows);
+            }
+        });
+    }
+
+    // false on a conflict, like WorksheetRow.commitChanges()
+    public ListenableFuture<Boolean> commitChanges(final WorksheetRow row) {
+        return submit(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return row.commitChanges();
+            }
+        });
+    }
+
+    // false on a conflict, like WorksheetRow.commitDelete()
+    public ListenableFuture<Boolean> commitDelete(final WorksheetRow row) {
+        return submit(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return row.commitDelete();
+            }
+        });
+    }
+}
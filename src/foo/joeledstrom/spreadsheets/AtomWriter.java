@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.io.IOException;
+import java.io.Writer;
+
+// Writes Atom request bodies. Text and attribute values are escaped in a single pass, straight
+// into the underlying Writer, without creating temporary strings.
+final class AtomWriter {
+
+    private final Writer out;
+    private final char[] digits = new char[11];
+
+    AtomWriter(Writer out) {
+        this.out = out;
+    }
+
+    // markup, written as is
+    AtomWriter raw(String markup) throws IOException {
+        out.write(markup);
+        return this;
+    }
+
+    AtomWriter raw(char c) throws IOException {
+        out.write(c);
+        return this;
+    }
+
+    AtomWriter number(int value) throws IOException {
+        if (value < 0) {
+            if (value == Integer.MIN_VALUE) {
+                out.write(Integer.toString(value));
+                return this;
+            }
+            out.write('-');
+            value = -value;
+        }
+
+        int pos = digits.length;
+        do {
+            digits[--pos] = (char)('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+
+        out.write(digits, pos, digits.length - pos);
+        return this;
+    }
+
+    // escaped character data (both quote characters are escaped as well)
+    AtomWriter text(String value) throws IOException {
+        return escape(value, false);
+    }
+
+    // escaped attribute value, also escapes tabs and line breaks, which a parser would otherwise
+    // normalize to spaces (cell values with line breaks would lose them)
+    AtomWriter attribute(String value) throws IOException {
+        return escape(value, true);
+    }
+
+    private AtomWriter escape(String value, boolean attribute) throws IOException {
+        if (value == null)
+            return this;
+
+        int start = 0;
+        int length = value.length();
+
+        for (int i = 0; i < length; i++) {
+            String entity;
+            switch (value.charAt(i)) {
+                case '&':  entity = "&amp;"; break;
+                case '<':  entity = "&lt;"; break;
+                case '>':  entity = "&gt;"; break;
+                case '"':  entity = "&quot;"; break;
+                case '\'': entity = "&apos;"; break;
+                case '\n': if (attribute) { entity = "&#10;"; break; } continue;
+                case '\r': if (attribute) { entity = "&#13;"; break; } continue;
+                case '\t': if (attribute) { entity = "&#9;"; break; } continue;
+                default:   continue;
+            }
+            if (i > start)
+                out.write(value, start, i - start);
+            out.write(entity);
+            start = i + 1;
+        }
+
+        if (start < length)
+            out.write(value, start, length - start);
+        return this;
+    }
+
+    // <name>text</name>
+    AtomWriter element(String name, String text) throws IOException {
+        out.write('<');
+        out.write(name);
+        out.write('>');
+        text(text);
+        out.write("</");
+        out.write(name);
+        out.write('>');
+        return this;
+    }
+
+    // <gsx:column>value</gsx:column>
+    AtomWriter gsx(String column, String value) throws IOException {
+        out.write("<gsx:");
+        text(column);
+        out.write('>');
+        text(value);
+        out.write("</gsx:");
+        text(column);
+        out.write('>');
+        return this;
+    }
+}
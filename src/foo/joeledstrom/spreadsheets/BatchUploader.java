@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import foo.joeledstrom.spreadsheets.SpreadsheetsService.SpreadsheetsException;
+import foo.joeledstrom.spreadsheets.SpreadsheetsService.SpreadsheetsHttpException;
+import foo.joeledstrom.spreadsheets.Worksheet.RowUploadToken;
+
+// Splits a large batchUpload(..) into several smaller batch feeds and posts up to maxInFlight of them at once.
+// The chunk size (in cells) follows the observed latency, so each batch request takes roughly TARGET_CHUNK_MILLIS.
+class BatchUploader {
+
+    static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    private static final int MIN_CELLS_PER_CHUNK = 50;
+    private static final int MAX_CELLS_PER_CHUNK = 5000;
+    private static final int INITIAL_CELLS_PER_CHUNK = 500;
+    private static final long MAX_CHUNK_BYTES = 1024 * 1024;
+    private static final long TARGET_CHUNK_MILLIS = 5000;
+
+    // approximate size of the batch entry markup around every cell value, excluding the cellsFeed urls
+    private static final int CELL_ENTRY_OVERHEAD = 300;
+
+    private final Worksheet worksheet;
+    private final int maxInFlight;
+    private final int bytesPerCellEntry;
+    private volatile int cellsPerChunk = INITIAL_CELLS_PER_CHUNK;
+
+    private final List<RowUploadToken> failed = Collections.synchronizedList(new ArrayList<RowUploadToken>());
+    private Exception fatal; // guarded by this
+
+    BatchUploader(Worksheet worksheet, String cellsFeed, int maxInFlight) {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+
+        this.worksheet = worksheet;
+        this.maxInFlight = maxInFlight;
+        this.bytesPerCellEntry = CELL_ENTRY_OVERHEAD + 3 * cellsFeed.length();
+    }
+
+    Collection<RowUploadToken> upload(Iterable<RowUploadToken> rows) throws IOException, SpreadsheetsException {
+        ExecutorService executor = Executors.newFixedThreadPool(maxInFlight, new DaemonThreadFactory("BatchUploader"));
+        Semaphore inFlight = new Semaphore(maxInFlight);
+
+        try {
+            List<RowUploadToken> chunk = new ArrayList<RowUploadToken>();
+            int chunkCells = 0;
+            long chunkBytes = 0;
+
+            for (RowUploadToken token : rows) {
+                long tokenBytes = estimateBytes(token);
+
+                if (!chunk.isEmpty() && (chunkCells + token.cells.size() > cellsPerChunk
+                                         || chunkBytes + tokenBytes > MAX_CHUNK_BYTES)) {
+                    if (!submit(executor, inFlight, chunk))
+                        break;
+
+                    chunk = new ArrayList<RowUploadToken>();
+                    chunkCells = 0;
+                    chunkBytes = 0;
+                }
+
+                chunk.add(token);
+                chunkCells += token.cells.size();
+                chunkBytes += tokenBytes;
+            }
+
+            if (!chunk.isEmpty())
+                submit(executor, inFlight, chunk);
+
+            // wait for every chunk to finish
+            inFlight.acquireUninterruptibly(maxInFlight);
+        } finally {
+            executor.shutdown();
+        }
+
+        synchronized (this) {
+            if (fatal instanceof SpreadsheetsException)
+                throw (SpreadsheetsException)fatal;
+            if (fatal instanceof IOException)
+                throw (IOException)fatal;
+            if (fatal != null)
+                throw new RuntimeException(fatal);
+        }
+
+        return failed;
+    }
+
+    // returns false if a previous chunk failed in a way that makes further uploads pointless
+    private boolean submit(ExecutorService executor, final Semaphore inFlight, final List<RowUploadToken> chunk) {
+        inFlight.acquireUninterruptibly();
+
+        synchronized (this) {
+            if (fatal != null) {
+                inFlight.release();
+                return false;
+            }
+        }
+
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    uploadChunk(chunk);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+        return true;
+    }
+
+    private void uploadChunk(List<RowUploadToken> chunk) {
+        int cells = 0;
+        for (RowUploadToken token : chunk)
+            cells += token.cells.size();
+
+        long start = System.currentTimeMillis();
+        try {
+            failed.addAll(worksheet.batchUpload(chunk));
+            adjustChunkSize(cells, System.currentTimeMillis() - start);
+        } catch (SpreadsheetsHttpException e) {
+            // the whole chunk was rejected, the caller can retry it with the other failures
+            failed.addAll(chunk);
+        } catch (IOException e) {
+            failed.addAll(chunk);
+        } catch (Exception e) {
+            // eg. SpreadsheetsTokenExpiredException, no point in sending the remaining chunks
+            failed.addAll(chunk);
+            synchronized (this) {
+                if (fatal == null)
+                    fatal = e;
+            }
+        }
+    }
+
+    private void adjustChunkSize(int cells, long elapsedMillis) {
+        if (cells == 0)
+            return;
+
+        double millisPerCell = Math.max(1, elapsedMillis) / (double)cells;
+        int ideal = (int)(TARGET_CHUNK_MILLIS / millisPerCell);
+        int maxByPayload = (int)(MAX_CHUNK_BYTES / bytesPerCellEntry);
+
+        // move halfway towards the ideal size to smooth out single slow or fast responses
+        int next = (cellsPerChunk + ideal) / 2;
+        next = Math.min(next, maxByPayload);
+        cellsPerChunk = Math.max(MIN_CELLS_PER_CHUNK, Math.min(MAX_CELLS_PER_CHUNK, next));
+    }
+
+    private long estimateBytes(RowUploadToken token) {
+        long bytes = 0;
+        for (String cell : token.cells)
+            bytes += bytesPerCellEntry + (cell == null ? 0 : cell.length());
+        return bytes;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// A rectangular block of cells read with Worksheet.readRange(..). Rows and columns are numbered like in
+// the worksheet (from 1, row 1 is the header row).
+//
+// The grid is an int per cell pointing into a table of the distinct values, so repeated values (status
+// columns, numbers, empty cells) are stored once. Slot 0 of the table is null, for cells that are empty.
+public class CellRange {
+
+    private final int minRow;
+    private final int maxRow;
+    private final int minCol;
+    private final int maxCol;
+    private final int colCount;
+
+    private final int[] grid; // row major, (row - minRow) * colCount + (col - minCol)
+    private String[] strings = new String[16];
+    private int stringCount = 1;
+    private int cellCount;
+    private Map<String, Integer> stringIndexes = new HashMap<String, Integer>(); // only while it's being filled
+
+    CellRange(int minRow, int maxRow, int minCol, int maxCol) {
+        if (minRow < 1 || minCol < 1 || maxRow < minRow || maxCol < minCol)
+            throw new IllegalArgumentException("range must satisfy 1 <= min <= max for both rows and columns");
+
+        long size = (long)(maxRow - minRow + 1) * (maxCol - minCol + 1);
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("range has too many cells: " + size);
+
+        this.minRow = minRow;
+        this.maxRow = maxRow;
+        this.minCol = minCol;
+        this.maxCol = maxCol;
+        this.colCount = maxCol - minCol + 1;
+        this.grid = new int[(int)size];
+    }
+
+    public int getMinRow() {
+        return minRow;
+    }
+    public int getMaxRow() {
+        return maxRow;
+    }
+    public int getMinCol() {
+        return minCol;
+    }
+    public int getMaxCol() {
+        return maxCol;
+    }
+
+    // cells that have a value
+    public int getCellCount() {
+        return cellCount;
+    }
+
+    // null if the cell is empty
+    public String get(int row, int col) {
+        return strings[grid[index(row, col)]];
+    }
+
+    // the values of one row, from minCol to maxCol
+    public String[] getRow(int row) {
+        String[] values = new String[colCount];
+        int offset = index(row, minCol);
+        for (int i = 0; i < colCount; i++)
+            values[i] = strings[grid[offset + i]];
+        return values;
+    }
+
+    private int index(int row, int col) {
+        if (row < minRow || row > maxRow || col < minCol || col > maxCol)
+            throw new IndexOutOfBoundsException("R" + row + "C" + col + " is outside of the range");
+        return (row - minRow) * colCount + (col - minCol);
+    }
+
+    // cells outside of the range are ignored
+    void set(int row, int col, String value) {
+        if (value == null || row < minRow || row > maxRow || col < minCol || col > maxCol)
+            return;
+
+        Integer string = stringIndexes.get(value);
+        if (string == null) {
+            if (stringCount == strings.length) {
+                String[] grown = new String[strings.length * 2];
+                System.arraycopy(strings, 0, grown, 0, strings.length);
+                strings = grown;
+            }
+            string = stringCount;
+            strings[stringCount++] = value;
+            stringIndexes.put(value, string);
+        }
+
+        int index = (row - minRow) * colCount + (col - minCol);
+        if (grid[index] == 0)
+            cellCount++;
+        grid[index] = string;
+    }
+
+    // drops what's only needed while filling it
+    void trim() {
+        stringIndexes = null;
+        if (stringCount < strings.length) {
+            String[] trimmed = new String[stringCount];
+            System.arraycopy(strings, 0, trimmed, 0, stringCount);
+            strings = trimmed;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.google.api.client.xml.Xml;
+
+// Reads the gs:cell elements of a cells feed straight from the pull parser into a CellRange, everything
+// else in the entries is skipped. Like ListFeedDecoder, but no object is created per cell.
+class CellsFeedDecoder {
+
+    private static final String GS_NS = "http://schemas.google.com/spreadsheets/2006";
+
+    private final InputStream in;
+    private final XmlPullParser parser;
+    private final boolean inputValues;
+
+    // inputValues: the values as entered (eg. formulas) instead of as displayed
+    CellsFeedDecoder(InputStream in, boolean inputValues) throws XmlPullParserException {
+        this.in = in;
+        this.inputValues = inputValues;
+        this.parser = Xml.createParser();
+        parser.setInput(in, null);
+    }
+
+    void readInto(CellRange range) throws IOException, XmlPullParserException {
+        while (true) {
+            int event = parser.next();
+
+            if (event == XmlPullParser.END_DOCUMENT)
+                break;
+
+            // feed > entry > gs:cell
+            if (event == XmlPullParser.START_TAG && parser.getDepth() == 3
+                    && "cell".equals(parser.getName()) && GS_NS.equals(parser.getNamespace()))
+                readCell(range);
+        }
+        range.trim();
+    }
+
+    void close() {
+        try {
+            in.close();
+        } catch (IOException e)
+        {} // really ignore this
+    }
+
+    private void readCell(CellRange range) throws IOException, XmlPullParserException {
+        int row, col;
+        try {
+            row = Integer.parseInt(parser.getAttributeValue(null, "row"));
+            col = Integer.parseInt(parser.getAttributeValue(null, "col"));
+        } catch (NumberFormatException e) {
+            throw new XmlPullParserException("Cells feed entry structure incorrect (row/col)");
+        }
+
+        String value = inputValues ? parser.getAttributeValue(null, "inputValue") : null;
+        String text = parser.nextText();
+
+        range.set(row, col, inputValues ? value : text);
+    }
+}
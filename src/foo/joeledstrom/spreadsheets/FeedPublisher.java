@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import foo.joeledstrom.spreadsheets.SpreadsheetsService.FeedIterator;
+import foo.joeledstrom.spreadsheets.SpreadsheetsService.SpreadsheetsException;
+
+// Push version of a FeedIterator, with the same contract as a Reactive Streams publisher: a subscriber
+// gets entries only after asking for them with request(n), so the feed is read and parsed only as far
+// as it has asked for. Nothing is buffered. cancel() closes the feed (and its connection).
+//
+// Every subscribe(..) runs the query again. The feed is opened when the first entries are requested,
+// and everything is delivered on the executor, one call at a time per subscriber.
+public abstract class FeedPublisher<T> {
+
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+        void onNext(T entry);
+        // IOException, SpreadsheetsException or IllegalArgumentException for request(n <= 0),
+        // the feed is already closed
+        void onError(Exception e);
+        void onComplete();
+    }
+
+    public interface Subscription {
+        // n > 0, can be called from any thread, also from within onNext(..)
+        void request(long n);
+        void cancel();
+    }
+
+    private final Executor executor;
+
+    FeedPublisher(Executor executor) {
+        this.executor = executor;
+    }
+
+    // the query, run on the executor
+    abstract FeedIterator<T> open() throws IOException, SpreadsheetsException;
+
+    public void subscribe(Subscriber<? super T> subscriber) {
+        FeedSubscription subscription = new FeedSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+
+    private class FeedSubscription implements Subscription, Runnable {
+        private final Subscriber<? super T> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger(); // request/cancel calls not yet seen by run()
+        private volatile boolean cancelled;
+        private volatile boolean invalidRequest;
+
+        // only touched by run(), which never runs concurrently with itself
+        private FeedIterator<T> feed;
+        private boolean done;
+
+        FeedSubscription(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = true;
+                cancelled = true;
+                schedule();
+                return;
+            }
+            long current, next;
+            do {
+                current = demand.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n; // Long.MAX_VALUE means unbounded
+            } while (!demand.compareAndSet(current, next));
+            schedule();
+        }
+
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (pending.getAndIncrement() == 0)
+                executor.execute(this);
+        }
+
+        public void run() {
+            int seen = pending.get();
+            while (true) {
+                drain();
+                seen = pending.addAndGet(-seen);
+                if (seen == 0)
+                    return;
+            }
+        }
+
+        private void drain() {
+            if (done)
+                return;
+
+            boolean success = false;
+            try {
+                if (cancelled) {
+                    finish();
+                    if (invalidRequest)
+                        subscriber.onError(new IllegalArgumentException("request(n) needs n > 0"));
+                    success = true;
+                    return;
+                }
+                if (demand.get() == 0) {
+                    success = true;
+                    return;
+                }
+                if (feed == null)
+                    feed = open();
+
+                while (!cancelled && demand.get() > 0) {
+                    T entry = feed.getNextEntry();
+                    if (entry == null) {
+                        finish();
+                        subscriber.onComplete();
+                        success = true;
+                        return;
+                    }
+                    if (demand.get() != Long.MAX_VALUE)
+                        demand.decrementAndGet();
+                    subscriber.onNext(entry);
+                }
+                if (cancelled)
+                    finish();
+                success = true;
+            } catch (IOException e) {
+                finish();
+                subscriber.onError(e);
+                success = true;
+            } catch (SpreadsheetsException e) {
+                finish();
+                subscriber.onError(e);
+                success = true;
+            } finally {
+                if (!success) // the subscriber threw
+                    finish();
+            }
+        }
+
+        private void finish() {
+            done = true;
+            if (feed != null)
+                feed.close();
+        }
+    }
+}
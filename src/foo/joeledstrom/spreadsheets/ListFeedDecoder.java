@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.google.api.client.xml.Xml;
+
+// Reads list feed entries straight from the pull parser into WorksheetRows, without going through
+// GenericXml and the reflective @Key binding of ListEntry. Only id, gd:etag, the edit link and the
+// gsx:* elements are looked at, everything else is skipped. Rows share one RowSchema, that is only
+// replaced if a later entry has a column the earlier ones didn't have.
+class ListFeedDecoder {
+
+    private static final String ATOM_NS = "http://www.w3.org/2005/Atom";
+    private static final String GD_NS = "http://schemas.google.com/g/2005";
+    private static final String GSX_NS = "http://schemas.google.com/spreadsheets/2006/extended";
+
+    private final SpreadsheetsService service;
+    private final InputStream in;
+    private final XmlPullParser parser;
+
+    private final RowSchema.Interner interner = new RowSchema.Interner();
+    private RowSchema schema = RowSchema.EMPTY;
+    private String[] buffer = new String[16]; // values of the entry being read, indexed like schema
+
+    ListFeedDecoder(SpreadsheetsService service, InputStream in) throws XmlPullParserException {
+        this.service = service;
+        this.in = in;
+        this.parser = Xml.createParser();
+        parser.setInput(in, null);
+    }
+
+    // returns null at the end of the feed
+    WorksheetRow next() throws IOException, XmlPullParserException {
+        while (true) {
+            int event = parser.next();
+
+            if (event == XmlPullParser.END_DOCUMENT)
+                return null;
+
+            if (event == XmlPullParser.START_TAG && parser.getDepth() == 2
+                    && "entry".equals(parser.getName()) && ATOM_NS.equals(parser.getNamespace()))
+                return readEntry();
+        }
+    }
+
+    void close() {
+        try {
+            in.close();
+        } catch (IOException e)
+        {} // really ignore this
+    }
+
+    private WorksheetRow readEntry() throws IOException, XmlPullParserException {
+        String etag = parser.getAttributeValue(GD_NS, "etag");
+        String id = null;
+        String editUrl = null;
+        for (int i = 0; i < buffer.length; i++)
+            buffer[i] = null;
+
+        int entryDepth = parser.getDepth();
+
+        while (true) {
+            int event = parser.next();
+
+            if (event == XmlPullParser.END_TAG && parser.getDepth() == entryDepth)
+                break;
+            if (event == XmlPullParser.END_DOCUMENT)
+                throw new XmlPullParserException("List feed entry structure incorrect (unexpected end)");
+            if (event != XmlPullParser.START_TAG || parser.getDepth() != entryDepth + 1)
+                continue;
+
+            String namespace = parser.getNamespace();
+            String name = parser.getName();
+
+            if (GSX_NS.equals(namespace)) {
+                setValue(name, interner.value(parser.nextText()));
+            } else if (ATOM_NS.equals(namespace)) {
+                if ("id".equals(name)) {
+                    id = parser.nextText();
+                } else if ("link".equals(name) && "edit".equals(parser.getAttributeValue(null, "rel"))) {
+                    editUrl = parser.getAttributeValue(null, "href");
+                }
+            }
+        }
+
+        if (editUrl == null)
+            throw new XmlPullParserException("List feed entry structure incorrect (edit url)");
+
+        String[] values = new String[schema.size()];
+        System.arraycopy(buffer, 0, values, 0, values.length);
+
+        return new WorksheetRow(service, etag, id, editUrl, schema, values);
+    }
+
+    private void setValue(String column, String value) {
+        int index = schema.indexOf(column);
+        if (index == -1) {
+            schema = schema.with(column);
+            index = schema.size() - 1;
+        }
+        if (index >= buffer.length) {
+            String[] grown = new String[buffer.length * 2];
+            System.arraycopy(buffer, 0, grown, 0, buffer.length);
+            buffer = grown;
+        }
+        buffer[index] = value;
+    }
+}
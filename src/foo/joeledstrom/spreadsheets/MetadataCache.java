@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// LRU cache of the entries of the spreadsheets and worksheets feeds, keyed by the query (title) or the
+// worksheets feed url, with the ETag of the feed they came from. For ttlMillis after they were fetched or
+// last revalidated they are used without asking the server, after that getSpreadsheets(..) and
+// getWorksheets() revalidate them with If-None-Match and use them again on 304.
+class MetadataCache<T> {
+
+    static class Entry<T> {
+        final String etag;
+        final List<T> items;
+        final long validatedAt; // System.nanoTime()
+
+        Entry(String etag, List<T> items, long validatedAt) {
+            this.etag = etag;
+            this.items = items;
+            this.validatedAt = validatedAt;
+        }
+    }
+
+    private final long ttlNanos;
+    private final int maxEntries;
+    private int generation; // guarded by this, changes with every invalidation
+    private final LinkedHashMap<String, Entry<T>> entries = new LinkedHashMap<String, Entry<T>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 2883472012945131581L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, MetadataCache.Entry<T>> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    MetadataCache(long ttlMillis, int maxEntries) {
+        this.ttlNanos = ttlMillis * 1000000L;
+        this.maxEntries = maxEntries;
+    }
+
+    // true if it can be used without revalidating it
+    boolean isFresh(Entry<T> entry) {
+        return System.nanoTime() - entry.validatedAt < ttlNanos;
+    }
+
+    synchronized Entry<T> get(String key) {
+        return entries.get(key);
+    }
+
+    // read before sending the request, and passed to put(..) with its result
+    synchronized int getGeneration() {
+        return generation;
+    }
+
+    // ignored if the cache was invalidated since generation was read, the items may be from before the change
+    synchronized void put(String key, int generation, String etag, List<T> items) {
+        if (etag == null || generation != this.generation)
+            return;
+        entries.put(key, new Entry<T>(etag, items, System.nanoTime()));
+    }
+
+    // the feed still had the ETag of the entry (304), it's fresh for another ttl
+    synchronized void revalidated(String key, Entry<T> entry) {
+        if (entries.get(key) == entry)
+            entries.put(key, new Entry<T>(entry.etag, entry.items, System.nanoTime()));
+    }
+
+    synchronized void remove(String key) {
+        entries.remove(key);
+        generation++;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        generation++;
+    }
+}
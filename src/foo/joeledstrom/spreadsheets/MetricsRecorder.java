@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free RequestListener that keeps counters and a latency histogram per operation.
+//
+//   MetricsRecorder metrics = new MetricsRecorder();
+//   service.addRequestListener(metrics);
+//   ...
+//   for (MetricsRecorder.Snapshot s : metrics.snapshot().values())
+//       Log.i(TAG, s.toString());
+//
+// Latencies (network + parse) are kept in buckets of microseconds: every power of two is split into
+// SUB_BUCKETS equal parts, so percentiles are upper bounds that are at most 1/SUB_BUCKETS (12.5%) off.
+public class MetricsRecorder implements RequestListener {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_BITS = 40; // 2^40 us is about 12 days, longer ones go in the last bucket
+    private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final ConcurrentMap<String, Counters> operations = new ConcurrentHashMap<String, Counters>();
+
+    private static class Counters {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong notModified = new AtomicLong();
+        final AtomicLong conflicts = new AtomicLong();
+        final AtomicLong networkNanos = new AtomicLong();
+        final AtomicLong parseNanos = new AtomicLong();
+        final AtomicLong bytesSent = new AtomicLong();
+        final AtomicLong bytesReceived = new AtomicLong();
+        final AtomicLong batchRows = new AtomicLong();
+        final AtomicLong batchFailures = new AtomicLong();
+        final AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+    }
+
+    public void onRequest(RequestEvent event) {
+        Counters counters = operations.get(event.getOperation());
+        if (counters == null) {
+            Counters created = new Counters();
+            counters = operations.putIfAbsent(event.getOperation(), created);
+            if (counters == null)
+                counters = created;
+        }
+
+        int status = event.getStatusCode();
+        counters.count.incrementAndGet();
+        if (status == 304)
+            counters.notModified.incrementAndGet();
+        else if (status == 412)
+            counters.conflicts.incrementAndGet();
+        else if (status == -1 || status >= 400)
+            counters.errors.incrementAndGet();
+
+        counters.networkNanos.addAndGet(event.getNetworkNanos());
+        counters.parseNanos.addAndGet(event.getParseNanos());
+        counters.bytesSent.addAndGet(event.getBytesSent());
+        counters.bytesReceived.addAndGet(event.getBytesReceived());
+        counters.batchRows.addAndGet(event.getBatchRows());
+        counters.batchFailures.addAndGet(event.getBatchFailures());
+
+        counters.latency.incrementAndGet(bucket((event.getNetworkNanos() + event.getParseNanos()) / 1000));
+    }
+
+    // Below 2 * SUB_BUCKETS every microsecond has its own bucket, above that the buckets of [2^e, 2^(e+1))
+    // are 2^(e - SUB_BITS) wide.
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int)micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int bucket = (exponent - SUB_BITS + 1) * SUB_BUCKETS
+                   + (int)((micros >> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    // the latencies in bucket are below this many microseconds
+    private static long upperBound(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS)
+            return bucket + 1;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long width = 1L << (exponent - SUB_BITS);
+        return (1L << exponent) + (bucket % SUB_BUCKETS + 1) * width;
+    }
+
+    // current values of every operation seen so far, by operation name
+    public Map<String, Snapshot> snapshot() {
+        Map<String, Snapshot> snapshots = new TreeMap<String, Snapshot>();
+        for (Map.Entry<String, Counters> operation : operations.entrySet())
+            snapshots.put(operation.getKey(), new Snapshot(operation.getKey(), operation.getValue()));
+        return Collections.unmodifiableMap(snapshots);
+    }
+
+    public void reset() {
+        operations.clear();
+    }
+
+
+    // The counters are read one at a time while requests may still complete, so a snapshot
+    // taken under load can be off by the requests that finished while it was taken.
+    public static class Snapshot {
+        private final String operation;
+        private final long count;
+        private final long errors;
+        private final long notModified;
+        private final long conflicts;
+        private final long networkNanos;
+        private final long parseNanos;
+        private final long bytesSent;
+        private final long bytesReceived;
+        private final long batchRows;
+        private final long batchFailures;
+        private final long[] latency = new long[BUCKETS];
+
+        Snapshot(String operation, Counters counters) {
+            this.operation = operation;
+            count = counters.count.get();
+            errors = counters.errors.get();
+            notModified = counters.notModified.get();
+            conflicts = counters.conflicts.get();
+            networkNanos = counters.networkNanos.get();
+            parseNanos = counters.parseNanos.get();
+            bytesSent = counters.bytesSent.get();
+            bytesReceived = counters.bytesReceived.get();
+            batchRows = counters.batchRows.get();
+            batchFailures = counters.batchFailures.get();
+            for (int i = 0; i < BUCKETS; i++)
+                latency[i] = counters.latency.get(i);
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+        public long getCount() {
+            return count;
+        }
+        // failed requests, not counting 304 and 412
+        public long getErrors() {
+            return errors;
+        }
+        public long getNotModified() {
+            return notModified;
+        }
+        public long getConflicts() {
+            return conflicts;
+        }
+        public long getNetworkNanos() {
+            return networkNanos;
+        }
+        public long getParseNanos() {
+            return parseNanos;
+        }
+        public long getBytesSent() {
+            return bytesSent;
+        }
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+        public long getBatchRows() {
+            return batchRows;
+        }
+        public long getBatchFailures() {
+            return batchFailures;
+        }
+
+        public double getNotModifiedRate() {
+            return count == 0 ? 0 : (double)notModified / count;
+        }
+        public double getConflictRate() {
+            return count == 0 ? 0 : (double)conflicts / count;
+        }
+
+        // upper bound of the latency below which percentile (0 - 100) of the requests completed
+        public double getLatencyMillis(double percentile) {
+            long total = 0;
+            for (long bucket : latency)
+                total += bucket;
+            if (total == 0)
+                return 0;
+
+            long rank = (long)Math.ceil(percentile / 100 * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += latency[i];
+                if (seen >= rank && latency[i] != 0)
+                    return upperBound(i) / 1000.0;
+            }
+            return upperBound(BUCKETS - 1) / 1000.0;
+        }
+
+        public String toString() {
+            return String.format("%s count=%d errors=%d 304=%.1f%% 412=%.1f%% p50=%.1fms p99=%.1fms " +
+                                 "network=%.1fms parse=%.1fms sent=%d received=%d batchRows=%d batchFailures=%d",
+                                 operation, count, errors, getNotModifiedRate() * 100, getConflictRate() * 100,
+                                 getLatencyMillis(50), getLatencyMillis(99),
+                                 networkNanos / 1e6, parseNanos / 1e6, bytesSent, bytesReceived, batchRows, batchFailures);
+        }
+    }
+}
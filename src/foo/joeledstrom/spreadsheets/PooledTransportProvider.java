@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+
+// Apache HttpClient with a connection pool whose size and keep-alive can be set, for servers that
+// run many requests against the same two hosts. ApacheHttpTransport hardwires 20 connections per host
+// and keeps idle connections until the server drops them (and then fails the next request on them).
+//
+//   SpreadsheetsService service = new SpreadsheetsService("app", new PooledTransportProvider(64, 32, 30000));
+//   service.warmUp();
+//
+// Connections idle for longer than keepAliveMillis are closed (or sooner if the server asks for it
+// with a Keep-Alive header), the pool is swept for them at most once per second.
+public class PooledTransportProvider extends TransportProvider {
+
+    static final int DEFAULT_MAX_CONNECTIONS = 64;
+    static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 32;
+    static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final DefaultHttpClient httpClient;
+    private final ClientConnectionManager connectionManager;
+    private final long keepAliveMillis;
+    private final HttpTransport transport = new PooledHttpTransport();
+    private volatile long nextSweep = System.nanoTime();
+
+    public PooledTransportProvider() {
+        this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_KEEP_ALIVE_MILLIS);
+    }
+
+    public PooledTransportProvider(int maxConnections, int maxConnectionsPerHost, long keepAliveMillis) {
+        if (maxConnections < 1 || maxConnectionsPerHost < 1 || maxConnectionsPerHost > maxConnections)
+            throw new IllegalArgumentException("connections must satisfy 1 <= per host <= max");
+
+        this.keepAliveMillis = keepAliveMillis;
+
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setStaleCheckingEnabled(params, false);
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerHost));
+        params.setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, false);
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+
+        SchemeRegistry schemes = new SchemeRegistry();
+        schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        connectionManager = new ThreadSafeClientConnManager(params, schemes);
+        httpClient = new DefaultHttpClient(connectionManager, params);
+        httpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+            private final ConnectionKeepAliveStrategy server = new DefaultConnectionKeepAliveStrategy();
+
+            public long getKeepAliveDuration(org.apache.http.HttpResponse response, HttpContext context) {
+                long duration = server.getKeepAliveDuration(response, context);
+                return duration < 0 ? PooledTransportProvider.this.keepAliveMillis
+                                    : Math.min(duration, PooledTransportProvider.this.keepAliveMillis);
+            }
+        });
+    }
+
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    public void shutdown() {
+        connectionManager.shutdown();
+    }
+
+    private void sweepIdleConnections() {
+        long now = System.nanoTime();
+        if (now - nextSweep < 0)
+            return;
+        nextSweep = now + SWEEP_INTERVAL_NANOS;
+
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS);
+    }
+
+
+    private class PooledHttpTransport extends HttpTransport {
+
+        protected LowLevelHttpRequest buildDeleteRequest(String url) {
+            return new Request(new HttpDelete(url));
+        }
+        protected LowLevelHttpRequest buildGetRequest(String url) {
+            return new Request(new HttpGet(url));
+        }
+        protected LowLevelHttpRequest buildPostRequest(String url) {
+            return new Request(new HttpPost(url));
+        }
+        protected LowLevelHttpRequest buildPutRequest(String url) {
+            return new Request(new HttpPut(url));
+        }
+
+        public void shutdown() {
+            PooledTransportProvider.this.shutdown();
+        }
+    }
+
+    private class Request extends LowLevelHttpRequest {
+        private final HttpRequestBase request;
+
+        Request(HttpRequestBase request) {
+            this.request = request;
+        }
+
+        public void addHeader(String name, String value) {
+            request.addHeader(name, value);
+        }
+
+        public void setContent(HttpContent content) {
+            ContentEntity entity = new ContentEntity(content);
+            entity.setContentEncoding(content.getEncoding());
+            entity.setContentType(content.getType());
+            ((HttpEntityEnclosingRequestBase)request).setEntity(entity);
+        }
+
+        public void setTimeout(int connectTimeout, int readTimeout) {
+            HttpParams params = request.getParams();
+            ConnManagerParams.setTimeout(params, connectTimeout); // waiting for a pooled connection
+            HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+            HttpConnectionParams.setSoTimeout(params, readTimeout);
+        }
+
+        public LowLevelHttpResponse execute() throws IOException {
+            sweepIdleConnections();
+            return new Response(request, httpClient.execute(request));
+        }
+    }
+
+    private static class Response extends LowLevelHttpResponse {
+        private final HttpRequestBase request;
+        private final org.apache.http.HttpResponse response;
+        private final Header[] headers;
+
+        Response(HttpRequestBase request, org.apache.http.HttpResponse response) {
+            this.request = request;
+            this.response = response;
+            this.headers = response.getAllHeaders();
+        }
+
+        // closing it hands the connection back to the pool
+        public InputStream getContent() throws IOException {
+            HttpEntity entity = response.getEntity();
+            return entity == null ? null : entity.getContent();
+        }
+        public String getContentEncoding() {
+            HttpEntity entity = response.getEntity();
+            Header header = entity == null ? null : entity.getContentEncoding();
+            return header == null ? null : header.getValue();
+        }
+        public long getContentLength() {
+            HttpEntity entity = response.getEntity();
+            return entity == null ? -1 : entity.getContentLength();
+        }
+        public String getContentType() {
+            HttpEntity entity = response.getEntity();
+            Header header = entity == null ? null : entity.getContentType();
+            return header == null ? null : header.getValue();
+        }
+        public String getStatusLine() {
+            return response.getStatusLine().toString();
+        }
+        public int getStatusCode() {
+            return response.getStatusLine().getStatusCode();
+        }
+        public String getReasonPhrase() {
+            return response.getStatusLine().getReasonPhrase();
+        }
+        public int getHeaderCount() {
+            return headers.length;
+        }
+        public String getHeaderName(int index) {
+            return headers[index].getName();
+        }
+        public String getHeaderValue(int index) {
+            return headers[index].getValue();
+        }
+
+        // drops the connection instead of returning it to the pool
+        public void disconnect() {
+            request.abort();
+        }
+    }
+
+    private static class ContentEntity extends AbstractHttpEntity {
+        private final HttpContent content;
+        private final long length;
+
+        ContentEntity(HttpContent content) {
+            this.content = content;
+            long length;
+            try {
+                length = content.getLength();
+            } catch (IOException e) {
+                length = -1;
+            }
+            this.length = length;
+            setChunked(length < 0);
+        }
+
+        public long getContentLength() {
+            return length;
+        }
+        public boolean isRepeatable() {
+            return content.retrySupported();
+        }
+        public boolean isStreaming() {
+            return false;
+        }
+        // the body is streamed with writeTo(..), this copies it for anything that wants to read it instead
+        public InputStream getContent() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            content.writeTo(bytes);
+            return new ByteArrayInputStream(bytes.toByteArray());
+        }
+        public void writeTo(OutputStream out) throws IOException {
+            content.writeTo(out);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+// What happened during one operation of the service, passed to RequestListeners when it's done.
+// Operations that return a FeedIterator are reported when the iterator is closed (getEntries() and reading
+// to the end close it), so parse time includes parsing all the entries.
+//
+// Thread safe: an event can be updated on a background thread (eg. FeedIterator.prefetch(..)) and read on another.
+public final class RequestEvent {
+
+    public static final String GET_SPREADSHEETS = "getSpreadsheets";
+    public static final String CREATE_SPREADSHEET = "createSpreadsheet";
+    public static final String GET_WORKSHEETS = "getWorksheets";
+    public static final String ADD_WORKSHEET = "addWorksheet";
+    public static final String RESIZE_WORKSHEET = "resizeWorksheet";
+    public static final String DELETE_WORKSHEET = "deleteWorksheet";
+    public static final String GET_ROWS = "getRows";
+    public static final String SCAN_ROWS = "scanRows"; // pages of getRowsParallel(..) and replica refreshes
+    public static final String GET_ROW_COUNT = "getRowCount";
+    public static final String GET_HEADER = "getHeader";
+    public static final String READ_RANGE = "readRange";
+    public static final String ADD_ROW = "addRow";
+    public static final String BATCH_UPLOAD = "batchUpload";
+    public static final String COMMIT_CHANGES = "commitChanges";
+    public static final String DELETE = "delete";
+
+    private final String operation;
+    // guarded by this
+    private int statusCode = -1;
+    private long networkNanos;
+    private long parseNanos;
+    private long bytesSent;
+    private long bytesReceived;
+    private int batchRows;
+    private int batchFailures;
+
+    RequestEvent(String operation) {
+        this.operation = operation;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    // of the last response, -1 if none arrived (eg. connection failures)
+    public synchronized int getStatusCode() {
+        return statusCode;
+    }
+
+    // time spent waiting for the server: from sending a request until its response headers arrived,
+    // and reading the response bodies from the connection
+    public synchronized long getNetworkNanos() {
+        return networkNanos;
+    }
+
+    // everything else: building the requests and parsing the responses
+    public synchronized long getParseNanos() {
+        return parseNanos;
+    }
+
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    // bytes of the response bodies read from the connection (so the compressed size if gzipped)
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    // rows in the batch feed, 0 if this isn't a batch upload
+    public synchronized int getBatchRows() {
+        return batchRows;
+    }
+
+    public synchronized int getBatchFailures() {
+        return batchFailures;
+    }
+
+    synchronized void addNetworkNanos(long nanos) {
+        networkNanos += nanos;
+    }
+
+    synchronized void addParseNanos(long nanos) {
+        parseNanos += nanos;
+    }
+
+    synchronized void addBytesSent(long bytes) {
+        bytesSent += bytes;
+    }
+
+    // bytes of a response body were read in nanos
+    synchronized void bodyRead(long bytes, long nanos) {
+        bytesReceived += bytes;
+        networkNanos += nanos;
+    }
+
+    synchronized void responseReceived(int statusCode) {
+        this.statusCode = statusCode;
+    }
+
+    synchronized void batchCompleted(int rows, int failures) {
+        batchRows += rows;
+        batchFailures += failures;
+    }
+}
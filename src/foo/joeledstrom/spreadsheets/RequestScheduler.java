@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Limits the number of requests in flight for one service, with a limit that adapts like TCP's AIMD:
+// every request that completes normally while the window was full (or requests were waiting) raises it by
+// 1/limit (about +1 per round trip of the whole window), while a 429/503 response, a timeout or an interactive
+// request that was much slower than usual cuts it by 30%. Requests sent before the last cut don't cut it
+// again, so a burst of throttled responses only counts once. Under light load the limit stays where it is.
+//
+// "Slower than usual" is the time until the response headers arrived (downloading the body isn't part of
+// it) compared to the fastest recent one of the same operation and response size, within a factor of two
+// (by Content-Length, responses without one are compared among themselves). A feed of 10000 rows is
+// expected to take longer than one of 10.
+//
+// Requests are in one of two lanes. Interactive requests always go first when a slot frees up, bulk
+// requests (batch uploads, full scans) can only use BULK_SHARE of the limit so interactive ones never
+// wait behind a full window of them.
+class RequestScheduler {
+
+    enum Lane { INTERACTIVE, BULK }
+
+    private static final double DECREASE_FACTOR = 0.7;
+    private static final double BULK_SHARE = 0.75;
+    private static final double LATENCY_TOLERANCE = 3.0; // times the fastest recent response of the same kind
+    private static final int BASELINE_SAMPLES = 200; // then the fastest response is forgotten, in case the network changed
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition interactiveTurn = lock.newCondition();
+    private final Condition bulkTurn = lock.newCondition();
+
+    // guarded by lock
+    private double limit;
+    private int inFlight;
+    private int bulkInFlight;
+    private int interactiveWaiting;
+    private int bulkWaiting;
+    private long lastDecrease;
+    private final Map<String, Baseline> baselines = new HashMap<String, Baseline>();
+
+    private static class Baseline {
+        long fastest = Long.MAX_VALUE;
+        long nextFastest = Long.MAX_VALUE;
+        int samples;
+    }
+
+    RequestScheduler(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit)
+            throw new IllegalArgumentException("limits must satisfy 1 <= min <= initial <= max");
+
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.lastDecrease = System.nanoTime();
+    }
+
+    int getLimit() {
+        lock.lock();
+        try {
+            return (int)limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // blocks until the request may be sent, returns the time it was let through (pass it to release)
+    long acquire(Lane lane) throws InterruptedException {
+        lock.lock();
+        try {
+            if (lane == Lane.INTERACTIVE) {
+                interactiveWaiting++;
+                try {
+                    while (inFlight >= (int)limit)
+                        interactiveTurn.await();
+                } finally {
+                    interactiveWaiting--;
+                }
+            } else {
+                bulkWaiting++;
+                try {
+                    while (inFlight >= (int)limit || interactiveWaiting > 0 || bulkInFlight >= bulkLimit())
+                        bulkTurn.await();
+                } finally {
+                    bulkWaiting--;
+                }
+                bulkInFlight++;
+            }
+            inFlight++;
+            return System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // throttled is true for 429 and 503 responses and timeouts, operation may be null, responseLength is -1
+    // if unknown (no Content-Length, or no response)
+    void release(Lane lane, String operation, long sentAt, long responseLength, boolean throttled) {
+        long now = System.nanoTime();
+
+        lock.lock();
+        try {
+            boolean saturated = inFlight >= (int)limit || interactiveWaiting > 0 || bulkWaiting > 0;
+            inFlight--;
+            if (lane == Lane.BULK)
+                bulkInFlight--;
+
+            // throttled responses are fast, they'd spoil the baseline
+            boolean slow = !throttled && lane == Lane.INTERACTIVE && operation != null
+                           && isSlow(operation, responseLength, now - sentAt);
+
+            if (throttled || slow) {
+                if (sentAt > lastDecrease) {
+                    limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+                    lastDecrease = now;
+                }
+            } else if (saturated) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+
+            interactiveTurn.signalAll();
+            bulkTurn.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int bulkLimit() {
+        return Math.max(1, (int)(limit * BULK_SHARE));
+    }
+
+    private boolean isSlow(String operation, long responseLength, long latency) {
+        // responses up to twice as long share a baseline
+        String kind = responseLength < 0 ? operation : operation + "/" + (64 - Long.numberOfLeadingZeros(responseLength));
+        Baseline baseline = baselines.get(kind);
+        if (baseline == null) {
+            baseline = new Baseline();
+            baselines.put(kind, baseline);
+        }
+
+        if (++baseline.samples == BASELINE_SAMPLES) {
+            baseline.fastest = baseline.nextFastest;
+            baseline.nextFastest = Long.MAX_VALUE;
+            baseline.samples = 0;
+        }
+        baseline.nextFastest = Math.min(baseline.nextFastest, latency);
+
+        boolean slow = baseline.fastest != Long.MAX_VALUE && latency > baseline.fastest * LATENCY_TOLERANCE;
+        baseline.fastest = Math.min(baseline.fastest, latency);
+        return slow;
+    }
+}
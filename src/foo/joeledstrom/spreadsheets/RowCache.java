@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// LRU cache of list feed query results, keyed by (list feed, sq, orderby, reverse).
+// Holds the rows together with the ETag of the feed they came from, so getRows(..) can revalidate
+// with If-None-Match and serve the cached rows on 304. Bounded by the total number of cached rows.
+class RowCache {
+
+    static class Entry {
+        final String etag;
+        final List<WorksheetRow> rows;
+
+        Entry(String etag, List<WorksheetRow> rows) {
+            this.etag = etag;
+            this.rows = rows;
+        }
+    }
+
+    private final int maxRows;
+    private int cachedRows; // guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    RowCache(int maxRows) {
+        this.maxRows = maxRows;
+    }
+
+    static String key(String listFeed, String sq, String orderby, boolean reverse) {
+        return listFeed + '\n' + sq + '\n' + orderby + '\n' + reverse;
+    }
+
+    int getMaxRows() {
+        return maxRows;
+    }
+
+    synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    synchronized void put(String key, String etag, List<WorksheetRow> rows) {
+        if (etag == null || rows.size() > maxRows)
+            return;
+
+        Entry old = entries.put(key, new Entry(etag, rows));
+        if (old != null)
+            cachedRows -= old.rows.size();
+        cachedRows += rows.size();
+
+        // evict least recently used queries until the new entry fits
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (cachedRows > maxRows && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            if (eldest.getKey().equals(key))
+                continue;
+            cachedRows -= eldest.getValue().rows.size();
+            it.remove();
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        cachedRows = 0;
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Typed version of the sq/orderby/reverse/max-results parameters of the list feed, for Worksheet.getRows(RowQuery).
+//
+//   RowQuery query = new RowQuery()
+//       .where(RowQuery.gt("Amount", 100).and(RowQuery.eq("Status", "open").or(RowQuery.eq("Status", "new"))))
+//       .orderBy("Amount", true)
+//       .limit(50);
+//
+// Column names can be given as written in the header row. The top level conditions joined with and() are
+// sent as sq when the server can evaluate them. The rest (see getUnpushedPredicates()) are checked on the
+// rows as they arrive, and then the limit is applied on the client as well, since max-results would
+// count rows that are filtered out afterwards.
+public class RowQuery {
+
+    private final List<Predicate> conditions = new ArrayList<Predicate>();
+    private String orderby;
+    private boolean reverse;
+    private Integer limit;
+
+    // adds a condition, all of them must hold
+    public RowQuery where(Predicate predicate) {
+        conditions.addAll(predicate.conjuncts());
+        return this;
+    }
+
+    public RowQuery orderBy(String column, boolean descending) {
+        orderby = Worksheet.toListFeedName(column);
+        reverse = descending;
+        return this;
+    }
+
+    public RowQuery limit(int maxRows) {
+        if (maxRows < 1)
+            throw new IllegalArgumentException("limit must be at least 1");
+        limit = maxRows;
+        return this;
+    }
+
+
+    // null if no condition could be sent to the server
+    public String getSq() {
+        List<Predicate> pushed = new ArrayList<Predicate>();
+        for (Predicate condition : conditions) {
+            if (condition.isPushable())
+                pushed.add(condition);
+        }
+        if (pushed.isEmpty())
+            return null;
+
+        StringBuilder sq = new StringBuilder();
+        for (Predicate condition : pushed) {
+            if (sq.length() != 0)
+                sq.append(" and ");
+            sq.append(condition.toSq(pushed.size() == 1));
+        }
+        return sq.toString();
+    }
+
+    public String getOrderby() {
+        return orderby;
+    }
+
+    public boolean isReverse() {
+        return reverse;
+    }
+
+    // the max-results sent, null if there's no limit or it has to be applied on the client
+    public Integer getMaxResults() {
+        return getUnpushedPredicates().isEmpty() ? limit : null;
+    }
+
+    public Integer getLimit() {
+        return limit;
+    }
+
+    // the conditions that are checked on the client, after the rows were downloaded
+    public List<Predicate> getUnpushedPredicates() {
+        List<Predicate> unpushed = new ArrayList<Predicate>();
+        for (Predicate condition : conditions) {
+            if (!condition.isPushable())
+                unpushed.add(condition);
+        }
+        return unpushed;
+    }
+
+    boolean matches(WorksheetRow row) {
+        for (Predicate condition : conditions) {
+            if (!condition.matches(row))
+                return false;
+        }
+        return true;
+    }
+
+    boolean matchesUnpushed(WorksheetRow row) {
+        for (Predicate condition : conditions) {
+            if (!condition.isPushable() && !condition.matches(row))
+                return false;
+        }
+        return true;
+    }
+
+    public String toString() {
+        return "sq=" + getSq() + " orderby=" + orderby + " reverse=" + reverse + " max-results=" + getMaxResults()
+               + " unpushed=" + getUnpushedPredicates();
+    }
+
+
+    public static Predicate eq(String column, String value) {
+        return new Comparison(column, "=", value, false);
+    }
+    public static Predicate eq(String column, double value) {
+        return new Comparison(column, "=", number(value), true);
+    }
+    public static Predicate ne(String column, String value) {
+        return new Comparison(column, "<>", value, false);
+    }
+    public static Predicate ne(String column, double value) {
+        return new Comparison(column, "<>", number(value), true);
+    }
+    public static Predicate lt(String column, String value) {
+        return new Comparison(column, "<", value, false);
+    }
+    public static Predicate lt(String column, double value) {
+        return new Comparison(column, "<", number(value), true);
+    }
+    public static Predicate le(String column, String value) {
+        return new Comparison(column, "<=", value, false);
+    }
+    public static Predicate le(String column, double value) {
+        return new Comparison(column, "<=", number(value), true);
+    }
+    public static Predicate gt(String column, String value) {
+        return new Comparison(column, ">", value, false);
+    }
+    public static Predicate gt(String column, double value) {
+        return new Comparison(column, ">", number(value), true);
+    }
+    public static Predicate ge(String column, String value) {
+        return new Comparison(column, ">=", value, false);
+    }
+    public static Predicate ge(String column, double value) {
+        return new Comparison(column, ">=", number(value), true);
+    }
+    // case insensitive substring match, sq has no operator for it so it's always checked on the client
+    public static Predicate contains(String column, String text) {
+        return new Contains(column, text);
+    }
+
+    // How the server compares a cell with an sq literal: a number literal only matches cells that are numbers
+    // (except for <>), a text literal is compared with compareValues(..). Missing cells are "".
+    static boolean evaluate(String cell, String operator, String literal, boolean numeric) {
+        int order;
+        if (numeric) {
+            Double number = WorksheetReplica.parseNumber(cell == null ? "" : cell);
+            if (number == null)
+                return operator.equals("<>") || operator.equals("!=");
+            order = Double.compare(number, Double.parseDouble(literal));
+        } else {
+            order = WorksheetReplica.compareValues(cell == null ? "" : cell, literal);
+        }
+
+        if (operator.equals("="))
+            return order == 0;
+        if (operator.equals("<>") || operator.equals("!="))
+            return order != 0;
+        if (operator.equals("<"))
+            return order < 0;
+        if (operator.equals("<="))
+            return order <= 0;
+        if (operator.equals(">"))
+            return order > 0;
+        return order >= 0;
+    }
+
+    // plain decimal notation, sq doesn't take exponents
+    private static String number(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            throw new IllegalArgumentException("not a finite number: " + value);
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
+
+    public static abstract class Predicate {
+
+        Predicate() {
+        }
+
+        public Predicate and(Predicate other) {
+            return new And(this, other);
+        }
+
+        public Predicate or(Predicate other) {
+            return new Or(this, other);
+        }
+
+        // true if the server can evaluate it
+        final boolean isPushable() {
+            return toSq(true) != null;
+        }
+
+        // null if the server can't evaluate it, topLevel is false if other conditions are joined to it
+        abstract String toSq(boolean topLevel);
+
+        abstract boolean matches(WorksheetRow row);
+
+        List<Predicate> conjuncts() {
+            return Collections.singletonList(this);
+        }
+    }
+
+    private static class Comparison extends Predicate {
+        private final String column;
+        private final String operator;
+        private final String value;
+        private final boolean numeric;
+
+        Comparison(String column, String operator, String value, boolean numeric) {
+            if (value == null)
+                throw new NullPointerException("value");
+            this.column = Worksheet.toListFeedName(column);
+            this.operator = operator;
+            this.value = value;
+            this.numeric = numeric;
+        }
+
+        // string literals can't contain a double quote, sq has no way to escape it
+        String toSq(boolean topLevel) {
+            if (column.length() == 0 || (!numeric && value.indexOf('"') != -1))
+                return null;
+            return column + " " + operator + " " + (numeric ? value : '"' + value + '"');
+        }
+
+        boolean matches(WorksheetRow row) {
+            return evaluate(row.getValue(column), operator, value, numeric);
+        }
+
+        public String toString() {
+            return column + " " + operator + " " + (numeric ? value : '"' + value + '"');
+        }
+    }
+
+    private static class Contains extends Predicate {
+        private final String column;
+        private final String text;
+
+        Contains(String column, String text) {
+            this.column = Worksheet.toListFeedName(column);
+            this.text = text;
+        }
+
+        String toSq(boolean topLevel) {
+            return null;
+        }
+
+        // regionMatches ignores case without the default locale (toLowerCase() turns "I" into a dotless i
+        // in Turkish) and without copying every cell
+        boolean matches(WorksheetRow row) {
+            String cell = row.getValue(column);
+            if (cell == null)
+                return false;
+            for (int i = 0; i <= cell.length() - text.length(); i++) {
+                if (cell.regionMatches(true, i, text, 0, text.length()))
+                    return true;
+            }
+            return false;
+        }
+
+        public String toString() {
+            return column + " contains \"" + text + "\"";
+        }
+    }
+
+    private static class And extends Predicate {
+        private final Predicate left;
+        private final Predicate right;
+
+        And(Predicate left, Predicate right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        // "and" binds tighter than "or", so it never needs parentheses
+        String toSq(boolean topLevel) {
+            String l = left.toSq(false);
+            String r = right.toSq(false);
+            return l == null || r == null ? null : l + " and " + r;
+        }
+
+        boolean matches(WorksheetRow row) {
+            return left.matches(row) && right.matches(row);
+        }
+
+        // split up so the pushable half can be sent even if the other half can't
+        List<Predicate> conjuncts() {
+            List<Predicate> conjuncts = new ArrayList<Predicate>(left.conjuncts());
+            conjuncts.addAll(right.conjuncts());
+            return conjuncts;
+        }
+
+        public String toString() {
+            return left + " and " + right;
+        }
+    }
+
+    private static class Or extends Predicate {
+        private final Predicate left;
+        private final Predicate right;
+
+        Or(Predicate left, Predicate right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        String toSq(boolean topLevel) {
+            String l = left.toSq(false);
+            String r = right.toSq(false);
+            if (l == null || r == null)
+                return null;
+            return topLevel ? l + " or " + r : "(" + l + " or " + r + ")";
+        }
+
+        boolean matches(WorksheetRow row) {
+            return left.matches(row) || right.matches(row);
+        }
+
+        public String toString() {
+            return "(" + left + " or " + right + ")";
+        }
+    }
+}
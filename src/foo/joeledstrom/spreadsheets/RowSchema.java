@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Immutable, ordered set of column names with name -> index lookup.
+// Rows parsed from the same feed share one instance and only keep a String[] of their values.
+final class RowSchema {
+
+    static final RowSchema EMPTY = new RowSchema(new String[0]);
+
+    private final String[] names;
+    private final Map<String, Integer> indexes;
+    private final Set<String> nameSet;
+
+    RowSchema(String[] names) {
+        this.names = names;
+        this.indexes = new HashMap<String, Integer>(names.length * 2);
+        Set<String> set = new LinkedHashSet<String>();
+
+        for (int i = 0; i < names.length; i++) {
+            indexes.put(names[i], i);
+            set.add(names[i]);
+        }
+        this.nameSet = Collections.unmodifiableSet(set);
+    }
+
+    static RowSchema of(Collection<String> names) {
+        return new RowSchema(names.toArray(new String[names.size()]));
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    String getName(int index) {
+        return names[index];
+    }
+
+    // -1 if the column isn't part of the schema
+    int indexOf(String name) {
+        Integer index = indexes.get(name);
+        return index == null ? -1 : index;
+    }
+
+    Set<String> getNames() {
+        return nameSet;
+    }
+
+    // a new schema with one more column at the end
+    RowSchema with(String name) {
+        String[] extended = new String[names.length + 1];
+        System.arraycopy(names, 0, extended, 0, names.length);
+        extended[names.length] = name;
+        return new RowSchema(extended);
+    }
+
+    // the values of map laid out in the order of this schema (null for missing columns)
+    String[] toValues(Map<String, String> map) {
+        String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++)
+            values[i] = map.get(names[i]);
+        return values;
+    }
+
+
+    // Shares schemas and short, repeated cell values between the rows of one feed.
+    static class Interner {
+        private static final int MAX_VALUES = 4096;
+        private static final int MAX_VALUE_LENGTH = 64;
+
+        private final Map<Set<String>, RowSchema> schemas = new HashMap<Set<String>, RowSchema>();
+        private final Map<String, String> values = new HashMap<String, String>();
+
+        RowSchema schemaFor(Set<String> names) {
+            RowSchema schema = schemas.get(names);
+            if (schema == null) {
+                schema = of(names);
+                schemas.put(new HashSet<String>(names), schema);
+            }
+            return schema;
+        }
+
+        String value(String value) {
+            if (value == null || value.length() > MAX_VALUE_LENGTH)
+                return value;
+
+            String shared = values.get(value);
+            if (shared != null)
+                return shared;
+
+            if (values.size() < MAX_VALUES)
+                values.put(value, value);
+            return value;
+        }
+
+        String[] toValues(RowSchema schema, Map<String, String> map) {
+            String[] row = schema.toValues(map);
+            for (int i = 0; i < row.length; i++)
+                row[i] = value(row[i]);
+            return row;
+        }
+    }
+}
@@ -19,12 +19,13 @@
 package foo.joeledstrom.spreadsheets;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import org.xmlpull.v1.XmlPullParserException;
 
 import com.google.api.client.googleapis.GoogleHeaders;
-import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.HttpContent;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpResponse;
@@ -65,14 +66,44 @@ public class Spreadsheet {
     .set("gd", "http://schemas.google.com/g/2005")
     .set("app", "http://www.w3.org/2007/app");
     
+    // served from the service's metadata cache, see SpreadsheetsService.setMetadataCacheTtl(..)
     public FeedIterator<Worksheet> getWorksheets() throws IOException, SpreadsheetsException {
-        return service.new FeedIterator<Worksheet>() {
+        MetadataCache<WorksheetEntry> cache = service.getWorksheetCache();
+        if (cache == null)
+            return queryWorksheets(null, null);
+        
+        MetadataCache.Entry<WorksheetEntry> cached = cache.get(worksheetFeed);
+        if (cached != null && cache.isFresh(cached))
+            return cachedWorksheets(cached);
+        
+        try {
+            return queryWorksheets(cached == null ? null : cached.etag, cache);
+        } catch (SpreadsheetsException e) {
+            if (cached != null && e.getMessage().equals("304 Not Modified")) {
+                cache.revalidated(worksheetFeed, cached);
+                return cachedWorksheets(cached);
+            } else {
+                throw e;
+            }
+        }
+    }
+    
+    private FeedIterator<Worksheet> queryWorksheets(final String ifNoneMatch, final MetadataCache<WorksheetEntry> cache) 
+                                                    throws IOException, SpreadsheetsException {
+        final int generation = cache == null ? 0 : cache.getGeneration();
+        
+        return service.new ParsingFeedIterator<Worksheet>(RequestEvent.GET_WORKSHEETS) {
+            // collected for the metadata cache, if the feed is read until the end
+            private List<WorksheetEntry> parsedEntries = cache == null ? null : new ArrayList<WorksheetEntry>();
+            
             public void init() throws IOException, XmlPullParserException {
                 WiseUrl url = new WiseUrl(worksheetFeed);
 
+                HttpRequest request = service.wiseRequestFactory.buildGetRequest(url);
+                request.headers.ifNoneMatch = ifNoneMatch;
 
-                HttpResponse response = service.wiseRequestFactory.buildGetRequest(url).execute();
-
+                HttpResponse response = send(request);
+                etag = response.headers.etag;
 
                 feedParser = 
                     AtomFeedParser.create(response, WORKSHEET_FEED_NS, WorksheetFeed.class, WorksheetEntry.class);
@@ -81,15 +112,43 @@ public class Spreadsheet {
             public Worksheet parseOne() throws IOException, XmlPullParserException {
                 WorksheetEntry entry = (WorksheetEntry)feedParser.parseNextEntry();
 
-                if (entry == null)
+                if (entry == null) {
+                    if (parsedEntries != null)
+                        cache.put(worksheetFeed, generation, etag, parsedEntries);
                     return null;
+                }
+                
+                if (parsedEntries != null)
+                    parsedEntries.add(entry);
 
-                return new Worksheet(service, entry.id, entry.title, entry.getListFeed(), entry.getCellsFeed(), entry.getEditUrl(), entry.rowCount);
+                return toWorksheet(entry);
             }
 
         };
     }
     
+    private FeedIterator<Worksheet> cachedWorksheets(final MetadataCache.Entry<WorksheetEntry> cached) 
+                                                     throws IOException, SpreadsheetsException {
+        return service.new ParsingFeedIterator<Worksheet>() {
+            private Iterator<WorksheetEntry> entries;
+            
+            public void init() {
+                etag = cached.etag;
+                entries = cached.items.iterator();
+            }
+            public Worksheet parseOne() throws XmlPullParserException {
+                if (!entries.hasNext())
+                    return null;
+                
+                return toWorksheet(entries.next());
+            }
+        };
+    }
+    
+    private Worksheet toWorksheet(WorksheetEntry entry) throws XmlPullParserException {
+        return new Worksheet(service, entry.id, entry.title, entry.getListFeed(), entry.getCellsFeed(), entry.getEditUrl(), entry.rowCount, entry.colCount);
+    }
+    
     public Worksheet addWorksheet(final String name, final List<String> columnNames) throws IOException, SpreadsheetsException {
      
         // TODO: validate columnNames (and name?)
@@ -98,35 +157,41 @@ public class Spreadsheet {
         atomParser.namespaceDictionary = WORKSHEET_FEED_NS;
         
         
-        final StringBuilder builder = new StringBuilder();
-            
-        builder.append("<entry xmlns=\"http://www.w3.org/2005/Atom\" xmlns:gs=\"http://schemas.google.com/spreadsheets/2006\">")
-        .append("<title>").append(name).append("</title>") 
-        .append("<gs:rowCount>2</gs:rowCount>")
-        .append("<gs:colCount>").append(columnNames.size()).append("</gs:colCount>")
-        .append("</entry>");
+        final HttpContent content = new StreamingXmlContent() {
+            void writeXml(AtomWriter out) throws IOException {
+                out.raw("<entry xmlns=\"http://www.w3.org/2005/Atom\" xmlns:gs=\"http://schemas.google.com/spreadsheets/2006\">")
+                .element("title", name) 
+                .raw("<gs:rowCount>2</gs:rowCount>")
+                .raw("<gs:colCount>").number(columnNames.size()).raw("</gs:colCount>")
+                .raw("</entry>");
+            }
+        };
         
         
-         Worksheet sheet = service.new Request<Worksheet>() {
-            public Worksheet run() throws IOException, XmlPullParserException {
-                WiseUrl url = new WiseUrl(worksheetFeed);
-                HttpContent content = new ByteArrayContent(builder.toString());    
-                HttpRequest request = service.wiseRequestFactory.buildPostRequest(url, content);
-                request.enableGZipContent = false;
+        Worksheet sheet;
+        try {
+            sheet = service.new Request<Worksheet>(RequestEvent.ADD_WORKSHEET) {
+                public Worksheet run() throws IOException, XmlPullParserException {
+                    WiseUrl url = new WiseUrl(worksheetFeed);
+                    HttpRequest request = service.wiseRequestFactory.buildPostRequest(url, content);
+                    request.enableGZipContent = false;
                 
-                GoogleHeaders headers = (GoogleHeaders)request.headers;
-                headers.contentType = "application/atom+xml";
-                headers.acceptEncoding = null;
-                headers.contentEncoding = null;
+                    GoogleHeaders headers = (GoogleHeaders)request.headers;
+                    headers.contentType = "application/atom+xml";
+                    headers.acceptEncoding = null;
+                    headers.contentEncoding = null;
                 
-                HttpResponse response = request.execute();
+                    HttpResponse response = send(request);
         
                 
-                WorksheetEntry entry = atomParser.parse(response, WorksheetEntry.class);
+                    WorksheetEntry entry = atomParser.parse(response, WorksheetEntry.class);
                 
-                return new Worksheet(service, entry.id, entry.title, entry.getListFeed(), entry.getCellsFeed(), entry.getEditUrl(), entry.rowCount);
-            }
-        }.execute();
+                    return toWorksheet(entry);
+                }
+            }.execute();
+        } finally {
+            service.worksheetsChanged(worksheetFeed);
+        }
         
         sheet.setColumns(columnNames);
         
@@ -138,9 +203,11 @@ public class Spreadsheet {
     }
 
     public static class WorksheetEntry {
+        @Key("@gd:etag") public String etag;
         @Key public String title;
         @Key public String id;
         @Key("gs:rowCount") public String rowCount;
+        @Key("gs:colCount") public String colCount;
         @Key("link") List<WorksheetLink> links;
         @Key WorksheetContent content;
         
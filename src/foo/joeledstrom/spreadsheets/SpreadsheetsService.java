@@ -16,18 +16,29 @@
 
 package foo.joeledstrom.spreadsheets;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 import org.xmlpull.v1.XmlPullParserException;
 
-import com.google.api.client.extensions.android2.AndroidHttp;
+import foo.joeledstrom.spreadsheets.Spreadsheet.WorksheetEntry;
+
 import com.google.api.client.googleapis.GoogleHeaders;
-import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpRequestInitializer;
@@ -44,13 +55,37 @@ public class SpreadsheetsService {
     HttpRequestFactory wiseRequestFactory;
     HttpRequestFactory writelyRequestFactory;
     private final String applicationName;
+    private final TransportProvider transportProvider;
     private String wiseToken;
     private String writelyToken;
+    private volatile boolean fastListParser;
+    private volatile RowCache rowCache = new RowCache(DEFAULT_ROW_CACHE_SIZE);
+    private volatile MetadataCache<SpreadsheetEntry> spreadsheetCache = 
+        new MetadataCache<SpreadsheetEntry>(DEFAULT_METADATA_TTL_MILLIS, DEFAULT_METADATA_CACHE_SIZE);
+    private volatile MetadataCache<WorksheetEntry> worksheetCache = 
+        new MetadataCache<WorksheetEntry>(DEFAULT_METADATA_TTL_MILLIS, DEFAULT_METADATA_CACHE_SIZE);
+    private volatile String spreadsheetsBaseUrl = DEFAULT_SPREADSHEETS_BASE_URL;
+    private volatile String documentsBaseUrl = DEFAULT_DOCUMENTS_BASE_URL;
+    private final List<RequestListener> requestListeners = new CopyOnWriteArrayList<RequestListener>();
+    private final List<RowObserver> rowObservers = new CopyOnWriteArrayList<RowObserver>();
+    private volatile boolean requestCompression;
+    private final ConcurrentHashMap<String, Boolean> compressionSupport = new ConcurrentHashMap<String, Boolean>(); // by host
+    private final ConcurrentHashMap<String, Object> appendLocks = new ConcurrentHashMap<String, Object>(); // by list feed
+    private volatile RequestScheduler scheduler = 
+        new RequestScheduler(DEFAULT_INITIAL_CONCURRENCY, DEFAULT_MIN_CONCURRENCY, DEFAULT_MAX_CONCURRENCY);
+    
+    static final int DEFAULT_ROW_CACHE_SIZE = 5000;
+    static final long DEFAULT_METADATA_TTL_MILLIS = 0;
+    static final int DEFAULT_METADATA_CACHE_SIZE = 256;
+    static final int DEFAULT_INITIAL_CONCURRENCY = 8;
+    static final int DEFAULT_MIN_CONCURRENCY = 1;
+    static final int DEFAULT_MAX_CONCURRENCY = 64;
+    static final String DEFAULT_SPREADSHEETS_BASE_URL = "https://spreadsheets.google.com/feeds";
+    static final String DEFAULT_DOCUMENTS_BASE_URL = "https://docs.google.com/feeds";
     
 
     
-    private void createRequestFactories() {
-        HttpTransport transport = AndroidHttp.newCompatibleTransport();
+    private void createRequestFactories(HttpTransport transport) {
 
         wiseRequestFactory = transport.createRequestFactory(new HttpRequestInitializer() {
             public void initialize(HttpRequest req) throws IOException {
@@ -86,11 +121,146 @@ public class SpreadsheetsService {
         
     }
 
+    // max number of rows kept by the getRows(..) cache (over all queries), 0 disables it
+    public void setRowCacheSize(int maxRows) {
+        rowCache = maxRows > 0 ? new RowCache(maxRows) : null;
+    }
+    
+    RowCache getRowCache() {
+        return rowCache;
+    }
+    
+    // How long the results of getSpreadsheets(..) and getWorksheets() are used without asking the server, after
+    // that they're revalidated with their ETag (a 304 if nothing changed). With the default of 0 every call
+    // revalidates, a negative ttl turns the cache off. Spreadsheets and worksheets created, resized or deleted
+    // through this service are seen right away, changes by others only after the ttl.
+    public void setMetadataCacheTtl(long ttlMillis) {
+        if (ttlMillis < 0) {
+            spreadsheetCache = null;
+            worksheetCache = null;
+        } else {
+            spreadsheetCache = new MetadataCache<SpreadsheetEntry>(ttlMillis, DEFAULT_METADATA_CACHE_SIZE);
+            worksheetCache = new MetadataCache<WorksheetEntry>(ttlMillis, DEFAULT_METADATA_CACHE_SIZE);
+        }
+    }
+    
+    MetadataCache<WorksheetEntry> getWorksheetCache() {
+        return worksheetCache;
+    }
+    
+    // a worksheet was added to worksheetFeed, or changed or deleted in an unknown one (null)
+    void worksheetsChanged(String worksheetFeed) {
+        MetadataCache<WorksheetEntry> cache = worksheetCache;
+        if (cache == null)
+            return;
+        if (worksheetFeed != null)
+            cache.remove(worksheetFeed);
+        else
+            cache.clear();
+    }
+    
+    // parse list feeds with ListFeedDecoder instead of AtomFeedParser/ListEntry
+    public void setFastListParserEnabled(boolean enabled) {
+        fastListParser = enabled;
+    }
+    
+    boolean isFastListParserEnabled() {
+        return fastListParser;
+    }
+    
+    // Gzip the bodies of the writes (batch uploads, added and changed rows, new worksheets and spreadsheets).
+    // The first compressed write to a host finds out if it takes them: if it's refused with 400 or 415 the
+    // body is sent again uncompressed, and that host is only sent uncompressed bodies from then on.
+    public void setRequestCompression(boolean enabled) {
+        requestCompression = enabled;
+    }
+    
+    // Where the feeds are found, defaults to https://spreadsheets.google.com/feeds and https://docs.google.com/feeds.
+    // All other urls (worksheets, list and cells feeds) are taken from the returned entries.
+    public void setBaseUrls(String spreadsheets, String documents) {
+        spreadsheetsBaseUrl = spreadsheets;
+        documentsBaseUrl = documents;
+    }
+
+    // held by Worksheet.addRows(..), which would overwrite the rows of another call to the same worksheet
+    Object appendLock(String listFeed) {
+        Object lock = new Object();
+        Object existing = appendLocks.putIfAbsent(listFeed, lock);
+        return existing == null ? lock : existing;
+    }
+
+    // told about the rows this service wrote, see WorksheetSnapshot
+    interface RowObserver {
+        void rowStored(WorksheetRow row);
+        void rowDeleted(String id);
+    }
+    
+    void addRowObserver(RowObserver observer) {
+        rowObservers.add(observer);
+    }
+    
+    void removeRowObserver(RowObserver observer) {
+        rowObservers.remove(observer);
+    }
+    
+    void rowStored(WorksheetRow row) {
+        for (RowObserver observer : rowObservers)
+            observer.rowStored(row);
+    }
+    
+    void rowDeleted(String id) {
+        for (RowObserver observer : rowObservers)
+            observer.rowDeleted(id);
+    }
+
+    // eg. a MetricsRecorder
+    public void addRequestListener(RequestListener listener) {
+        requestListeners.add(listener);
+    }
+    
+    public void removeRequestListener(RequestListener listener) {
+        requestListeners.remove(listener);
+    }
+    
+    // Bounds of the adaptive limit on requests in flight (see RequestScheduler), 1 <= min <= initial <= max.
+    // A max of 0 turns the limit off. Requests already waiting keep waiting on the old limiter.
+    public void setConcurrencyLimits(int initial, int min, int max) {
+        scheduler = max == 0 ? null : new RequestScheduler(initial, min, max);
+    }
+    
+    // the current adaptive limit, 0 if it's turned off
+    public int getConcurrencyLimit() {
+        RequestScheduler scheduler = this.scheduler;
+        return scheduler == null ? 0 : scheduler.getLimit();
+    }
+
+    // Opens connections to the spreadsheets and documents hosts ahead of the first request, call it
+    // after setBaseUrls(..). Blocks until it's done, failures are ignored.
+    public void warmUp() {
+        transportProvider.warmUp(Arrays.asList(spreadsheetsBaseUrl, documentsBaseUrl));
+    }
+
+    // closes the connections of the transport, the service can't be used after this
+    public void shutdown() throws IOException {
+        transportProvider.shutdown();
+    }
+
     public SpreadsheetsService(String applicationName) {
+        this(applicationName, new AndroidTransportProvider());
+    }
+    
+    // eg. NetHttpTransport when running outside of Android
+    public SpreadsheetsService(String applicationName, HttpTransport transport) {
+        this(applicationName, TransportProvider.of(transport));
+    }
+
+    // eg. PooledTransportProvider on servers
+    public SpreadsheetsService(String applicationName, TransportProvider transportProvider) {
 
         this.applicationName = applicationName;
+        this.transportProvider = transportProvider;
 
-        createRequestFactories();
+        createRequestFactories(TransportProvider.metered(transportProvider.getTransport()));
 
         // from Google IO 2011 talk:
         // Note. enabling this causes OutOfMemoryError on large spreadsheets
@@ -144,12 +314,37 @@ public class SpreadsheetsService {
     
     
 
-    // Converts exceptions
+    // Converts exceptions, and reports the operation to the RequestListeners
     abstract class Request<T> {
         
+        private final RequestEvent event;
+        private final boolean reportWhenDone;
+        
+        Request(String operation) {
+            this.event = new RequestEvent(operation);
+            this.reportWhenDone = true;
+        }
+        
+        // part of a larger operation (eg. reading a feed), whoever owns event reports it
+        Request(RequestEvent event) {
+            this.event = event;
+            this.reportWhenDone = false;
+        }
+        
         abstract T run() throws IOException, XmlPullParserException;
         
+        // use instead of request.execute() in run()
+        HttpResponse send(HttpRequest request) throws IOException {
+            return SpreadsheetsService.this.send(request, event);
+        }
+        
+        void batchCompleted(int rows, int failures) {
+            event.batchCompleted(rows, failures);
+        }
+        
         public final T execute() throws IOException, SpreadsheetsException {
+            long start = System.nanoTime();
+            long networkBefore = event.getNetworkNanos();
             try {
                 return run();
             } catch (HttpResponseException e) {
@@ -160,58 +355,214 @@ public class SpreadsheetsService {
                 }
             } catch (XmlPullParserException e) {
                 throw new SpreadsheetsException(e.getMessage());
-            } 
+            } finally {
+                event.addParseNanos(System.nanoTime() - start - (event.getNetworkNanos() - networkBefore));
+                if (reportWhenDone)
+                    report(event);
+            }
         }
        
     }
     
-    @SuppressWarnings("rawtypes")
+    HttpResponse send(HttpRequest request, RequestEvent event) throws IOException {
+        HttpContent content = request.content;
+        if (content == null)
+            return execute(request, event);
+        
+        String host = request.url.host;
+        Boolean supported = compressionSupport.get(host);
+        if (!requestCompression || Boolean.FALSE.equals(supported)) {
+            request.content = new CountingContent(content, event);
+            return execute(request, event);
+        }
+        
+        int refusedStatus;
+        request.content = new CountingContent(new GzipContent(content), event);
+        try {
+            HttpResponse response = execute(request, event);
+            compressionSupport.put(host, Boolean.TRUE);
+            return response;
+        } catch (HttpResponseException e) {
+            refusedStatus = e.response.statusCode;
+            if (supported != null || (refusedStatus != 400 && refusedStatus != 415))
+                throw e;
+        }
+        
+        // maybe it couldn't read the gzipped body, send it again as is
+        compressionSupport.put(host, Boolean.FALSE);
+        request.content = new CountingContent(content, event);
+        try {
+            return execute(request, event);
+        } catch (HttpResponseException e) {
+            // refused the same way, so it wasn't the compression
+            if (e.response.statusCode == refusedStatus)
+                compressionSupport.remove(host, Boolean.FALSE);
+            throw e;
+        }
+    }
+    
+    private HttpResponse execute(HttpRequest request, RequestEvent event) throws IOException {
+        RequestScheduler scheduler = this.scheduler;
+        RequestScheduler.Lane lane = isBulk(event.getOperation()) ? RequestScheduler.Lane.BULK 
+                                                                   : RequestScheduler.Lane.INTERACTIVE;
+        long sentAt = 0;
+        if (scheduler != null) {
+            try {
+                sentAt = scheduler.acquire(lane);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting to send the request");
+            }
+        }
+        
+        long start = System.nanoTime();
+        boolean throttled = false;
+        long responseLength = -1;
+        TransportProvider.meterResponses(event);
+        try {
+            HttpResponse response = request.execute();
+            event.responseReceived(response.statusCode);
+            responseLength = contentLength(response);
+            return response;
+        } catch (HttpResponseException e) {
+            event.responseReceived(e.response.statusCode);
+            responseLength = contentLength(e.response);
+            throttled = e.response.statusCode == 429 || e.response.statusCode == 503;
+            TransportProvider.ignore(e.response); // hands the connection back, nobody reads error bodies
+            throw e;
+        } catch (SocketTimeoutException e) {
+            throttled = true; // the server didn't answer in time, as good a sign of overload as a 503
+            throw e;
+        } finally {
+            TransportProvider.meterResponses(null);
+            event.addNetworkNanos(System.nanoTime() - start);
+            if (scheduler != null)
+                scheduler.release(lane, event.getOperation(), sentAt, responseLength, throttled);
+        }
+    }
+    
+    // -1 if the response doesn't have a (valid) Content-Length
+    private static long contentLength(HttpResponse response) {
+        String length = response.headers.contentLength;
+        try {
+            return length == null ? -1 : Long.parseLong(length);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    // these may wait for interactive requests, see RequestScheduler
+    private static boolean isBulk(String operation) {
+        return RequestEvent.BATCH_UPLOAD.equals(operation) || RequestEvent.SCAN_ROWS.equals(operation);
+    }
+    
+    void report(RequestEvent event) {
+        if (event.getOperation() == null)
+            return;
+        for (RequestListener listener : requestListeners)
+            listener.onRequest(event);
+    }
+    
+    // counts the bytes of the request body as they are written
+    private static class CountingContent implements HttpContent {
+        private final HttpContent content;
+        private final RequestEvent event;
+        
+        CountingContent(HttpContent content, RequestEvent event) {
+            this.content = content;
+            this.event = event;
+        }
+        public void writeTo(OutputStream out) throws IOException {
+            content.writeTo(new FilterOutputStream(out) {
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    event.addBytesSent(1);
+                }
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    event.addBytesSent(len);
+                }
+            });
+        }
+        public long getLength() throws IOException {
+            return content.getLength();
+        }
+        public String getEncoding() {
+            return content.getEncoding();
+        }
+        public String getType() {
+            return content.getType();
+        }
+        public boolean retrySupported() {
+            return content.retrySupported();
+        }
+    }
+    
+    // gzips the request body while it's written, the transport sends it chunked
+    private static class GzipContent implements HttpContent {
+        private static final int BUFFER_SIZE = 8192;
+        private final HttpContent content;
+        
+        GzipContent(HttpContent content) {
+            this.content = content;
+        }
+        public void writeTo(OutputStream out) throws IOException {
+            GZIPOutputStream gzip = new GZIPOutputStream(new FilterOutputStream(out) {
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+                public void close() throws IOException {
+                    flush(); // the transport owns the stream, don't close it
+                }
+            }, BUFFER_SIZE);
+            content.writeTo(gzip);
+            gzip.close(); // writes the trailer and frees the deflater
+        }
+        public long getLength() {
+            return -1;
+        }
+        public String getEncoding() {
+            return "gzip";
+        }
+        public String getType() {
+            return content.getType();
+        }
+        public boolean retrySupported() {
+            return content.retrySupported();
+        }
+    }
+    
+    // The entries of a feed, one at a time. getNextEntry() returns null at the end, and closes the iterator.
     public abstract class FeedIterator<T> {
         private boolean closed;
         
-        protected AtomFeedParser feedParser;  // assign in init()
-        protected String etag; // assign in init() 
-        abstract void init() throws IOException, XmlPullParserException;
-        abstract T parseOne() throws IOException, XmlPullParserException;
+        protected String etag; // assign in the constructor (or init())
+        final RequestEvent event;
 
-        FeedIterator() throws IOException, SpreadsheetsException {
-            new Request<Void>() {
-                public Void run() throws IOException, XmlPullParserException {
-                    init();
-                   
-                    feedParser.parseFeed(); // hack to prevent NPE (bug in API?)
-                    return null;
-                }
-            }.execute();
+        FeedIterator() {
+            this(null);
+        }
+        
+        // the operation is reported when the iterator is closed
+        FeedIterator(String operation) {
+            event = new RequestEvent(operation);
         }
-     
-
-        public T getNextEntry() throws IOException, SpreadsheetsException {
-            return new Request<T>() {
-                public T run() throws IOException, XmlPullParserException {
-                    boolean success = false;
-                    try {
-                        T entry = parseOne();
-                        
-                        if (entry != null)
-                            success = true;
-                        
-                        return entry;
-                    } finally {
-                        if (!success)
-                            close();
-                    }
-                }
-            }.execute();
-        }     
+        
+        public abstract T getNextEntry() throws IOException, SpreadsheetsException;
         
         public final void close() {
-            try {
-                closed = true;
-                feedParser.close();
-            } catch (IOException e) 
-            {} // really ignore this
-
+            if (!closed)
+                report(event);
+            closed = true;
+            onClose();
+        }
+        
+        void onClose() {
+        }
+        
+        // returns an iterator that reads and parses up to depth entries ahead on a background thread
+        public FeedIterator<T> prefetch(int depth) throws IOException, SpreadsheetsException {
+            return new PrefetchingFeedIterator<T>(this, depth);
         }
 
         public final List<T> getEntries() throws IOException, SpreadsheetsException {
@@ -235,6 +586,170 @@ public class SpreadsheetsService {
     
     
     
+    // Entries read one at a time with parseOne(), which returns null at the end of the feed. init() opens the
+    // feed in the constructor, usually by sending the request.
+    @SuppressWarnings("rawtypes")
+    abstract class ParsingFeedIterator<T> extends FeedIterator<T> {
+        protected AtomFeedParser feedParser;  // assign in init(), unless the entries are parsed some other way
+        
+        abstract void init() throws IOException, XmlPullParserException;
+        abstract T parseOne() throws IOException, XmlPullParserException;
+        
+        ParsingFeedIterator() throws IOException, SpreadsheetsException {
+            this(null);
+        }
+        
+        // the operation is reported when the iterator is closed, or right away if init() fails
+        ParsingFeedIterator(String operation) throws IOException, SpreadsheetsException {
+            super(operation);
+            boolean success = false;
+            try {
+                new Request<Void>(event) {
+                    public Void run() throws IOException, XmlPullParserException {
+                        init();
+                       
+                        if (feedParser != null)
+                            feedParser.parseFeed(); // hack to prevent NPE (bug in API?)
+                        return null;
+                    }
+                }.execute();
+                success = true;
+            } finally {
+                if (!success)
+                    report(event);
+            }
+        }
+        
+        // use instead of request.execute() in init()
+        HttpResponse send(HttpRequest request) throws IOException {
+            return SpreadsheetsService.this.send(request, event);
+        }
+
+        public T getNextEntry() throws IOException, SpreadsheetsException {
+            return new Request<T>(event) {
+                public T run() throws IOException, XmlPullParserException {
+                    boolean success = false;
+                    try {
+                        T entry = parseOne();
+                        
+                        if (entry != null)
+                            success = true;
+                        
+                        return entry;
+                    } finally {
+                        if (!success)
+                            close();
+                    }
+                }
+            }.execute();
+        }
+        
+        // closes the parser, subclasses that override it must call super.onClose()
+        void onClose() {
+            if (feedParser != null) {
+                try {
+                    feedParser.close();
+                } catch (IOException e) 
+                {} // really ignore this
+            }
+        }
+    }
+    
+    // Pulls entries from source on a background thread into a bounded queue, so the network and XML parsing
+    // overlap with the consumer's work. Exceptions are rethrown from getNextEntry(), close() stops the thread.
+    class PrefetchingFeedIterator<T> extends FeedIterator<T> {
+        private final FeedIterator<T> source;
+        private final BlockingQueue<Object> queue;
+        private final Object endOfFeed = new Object();
+        private final Thread worker;
+        private volatile boolean stopped;
+        private volatile boolean finished;
+        
+        private class Failure {
+            final Exception exception;
+            Failure(Exception exception) {
+                this.exception = exception;
+            }
+        }
+        
+        PrefetchingFeedIterator(FeedIterator<T> source, int depth) {
+            if (depth < 1)
+                throw new IllegalArgumentException("depth must be at least 1");
+            
+            this.source = source;
+            this.etag = source.etag;
+            this.queue = new ArrayBlockingQueue<Object>(depth);
+            
+            worker = new Thread(new Runnable() {
+                public void run() {
+                    prefetchAll();
+                }
+            }, "FeedIterator prefetch");
+            worker.setDaemon(true);
+            worker.start();
+        }
+        
+        private void prefetchAll() {
+            try {
+                while (!stopped) {
+                    T entry = source.getNextEntry();
+                    queue.put(entry == null ? endOfFeed : entry);
+                    if (entry == null)
+                        break;
+                }
+            } catch (InterruptedException e) {
+                // closed by the consumer
+            } catch (Exception e) {
+                try {
+                    if (!stopped)
+                        queue.put(new Failure(e)); // the consumer drains the queue until it finds this
+                } catch (InterruptedException ie) {
+                    // closed by the consumer
+                }
+            } finally {
+                source.close();
+            }
+        }
+        
+        @SuppressWarnings("unchecked")
+        public T getNextEntry() throws IOException, SpreadsheetsException {
+            if (finished)
+                return null;
+            
+            Object item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IOException("interrupted while waiting for the next entry");
+            }
+            
+            if (item == endOfFeed) {
+                close();
+                return null;
+            }
+            if (item instanceof PrefetchingFeedIterator.Failure) {
+                close();
+                Exception e = ((Failure)item).exception;
+                if (e instanceof IOException)
+                    throw (IOException)e;
+                if (e instanceof SpreadsheetsException)
+                    throw (SpreadsheetsException)e;
+                throw (RuntimeException)e;
+            }
+            
+            return (T)item;
+        }
+        
+        void onClose() {
+            finished = true;
+            stopped = true;
+            worker.interrupt();
+            source.close(); // unblocks a worker that is waiting for the network
+        }
+    }
+    
     static final XmlNamespaceDictionary SPREADSHEET_FEED_NS = new XmlNamespaceDictionary()
     .set("", "http://www.w3.org/2005/Atom")
     .set("openSearch", "http://a9.com/-/spec/opensearch/1.1/")
@@ -251,14 +766,48 @@ public class SpreadsheetsService {
         return getSpreadsheets(title, false);
     }
     
+    // served from the metadata cache, see setMetadataCacheTtl(..)
     public FeedIterator<Spreadsheet> getSpreadsheets(final String title, final Boolean exact) throws IOException, SpreadsheetsException {
-        return new FeedIterator<Spreadsheet>() {
+        MetadataCache<SpreadsheetEntry> cache = spreadsheetCache;
+        if (cache == null)
+            return querySpreadsheets(title, exact, null, null, null);
+        
+        String key = title + '\n' + exact;
+        MetadataCache.Entry<SpreadsheetEntry> cached = cache.get(key);
+        if (cached != null && cache.isFresh(cached))
+            return cachedSpreadsheets(cached);
+        
+        try {
+            return querySpreadsheets(title, exact, cached == null ? null : cached.etag, cache, key);
+        } catch (SpreadsheetsException e) {
+            if (cached != null && e.getMessage().equals("304 Not Modified")) {
+                cache.revalidated(key, cached);
+                return cachedSpreadsheets(cached);
+            } else {
+                throw e;
+            }
+        }
+    }
+    
+    private FeedIterator<Spreadsheet> querySpreadsheets(final String title, final Boolean exact, final String ifNoneMatch,
+                                                        final MetadataCache<SpreadsheetEntry> cache, final String cacheKey) 
+                                                        throws IOException, SpreadsheetsException {
+        final int generation = cache == null ? 0 : cache.getGeneration();
+        
+        return new ParsingFeedIterator<Spreadsheet>(RequestEvent.GET_SPREADSHEETS) {
+            // collected for the metadata cache, if the feed is read until the end
+            private List<SpreadsheetEntry> parsedEntries = cache == null ? null : new ArrayList<SpreadsheetEntry>();
+            
             public void init() throws IOException, XmlPullParserException {
-                WiseUrl url = new WiseUrl("https://spreadsheets.google.com/feeds/spreadsheets/private/full");
+                WiseUrl url = new WiseUrl(spreadsheetsBaseUrl + "/spreadsheets/private/full");
                 url.title = title;
                 url.title_exact = exact;
                 
-                HttpResponse response = wiseRequestFactory.buildGetRequest(url).execute();
+                HttpRequest request = wiseRequestFactory.buildGetRequest(url);
+                request.headers.ifNoneMatch = ifNoneMatch;
+                
+                HttpResponse response = send(request);
+                etag = response.headers.etag;
 
                 feedParser = 
                     AtomFeedParser.create(response, SPREADSHEET_FEED_NS, SpreadsheetFeed.class, SpreadsheetEntry.class);
@@ -267,8 +816,14 @@ public class SpreadsheetsService {
             public Spreadsheet parseOne() throws IOException, XmlPullParserException {
                 SpreadsheetEntry entry = (SpreadsheetEntry)feedParser.parseNextEntry();
 
-                if (entry == null)
+                if (entry == null) {
+                    if (parsedEntries != null)
+                        cache.put(cacheKey, generation, etag, parsedEntries);
                     return null;
+                }
+                
+                if (parsedEntries != null)
+                    parsedEntries.add(entry);
 
                 return new Spreadsheet(SpreadsheetsService.this, entry.title, entry.content.src);
             }
@@ -276,39 +831,67 @@ public class SpreadsheetsService {
         };
     }
     
-    public void createSpreadsheet(String title, boolean hidden) throws IOException, SpreadsheetsException {
+    private FeedIterator<Spreadsheet> cachedSpreadsheets(final MetadataCache.Entry<SpreadsheetEntry> cached) 
+                                                         throws IOException, SpreadsheetsException {
+        return new ParsingFeedIterator<Spreadsheet>() {
+            private Iterator<SpreadsheetEntry> entries;
+            
+            public void init() {
+                etag = cached.etag;
+                entries = cached.items.iterator();
+            }
+            public Spreadsheet parseOne() {
+                if (!entries.hasNext())
+                    return null;
+                
+                SpreadsheetEntry entry = entries.next();
+                return new Spreadsheet(SpreadsheetsService.this, entry.title, entry.content.src);
+            }
+        };
+    }
+    
+    public void createSpreadsheet(final String title, final boolean hidden) throws IOException, SpreadsheetsException {
         
-        final GenericUrl url = new GenericUrl("https://docs.google.com/feeds/default/private/full");
+        final GenericUrl url = new GenericUrl(documentsBaseUrl + "/default/private/full");
         
-        final StringBuilder builder = new StringBuilder();
-        builder.append("<?xml version='1.0' encoding='UTF-8'?>")
-        .append("<entry xmlns=\"http://www.w3.org/2005/Atom\">")
-        .append("<category scheme=\"http://schemas.google.com/g/2005#kind\" ")
-        .append("term=\"http://schemas.google.com/docs/2007#spreadsheet\"/>");
-        if (hidden) {
-            builder.append("<category scheme=\"http://schemas.google.com/g/2005/labels\" ")
-            .append("term=\"http://schemas.google.com/g/2005/labels#hidden\" label=\"hidden\"/>");
-        }
-        builder.append("<title>").append(Utils.encodeXML(title)).append("</title></entry>");
+        final HttpContent content = new StreamingXmlContent() {
+            void writeXml(AtomWriter out) throws IOException {
+                out.raw("<?xml version='1.0' encoding='UTF-8'?>")
+                .raw("<entry xmlns=\"http://www.w3.org/2005/Atom\">")
+                .raw("<category scheme=\"http://schemas.google.com/g/2005#kind\" ")
+                .raw("term=\"http://schemas.google.com/docs/2007#spreadsheet\"/>");
+                if (hidden) {
+                    out.raw("<category scheme=\"http://schemas.google.com/g/2005/labels\" ")
+                    .raw("term=\"http://schemas.google.com/g/2005/labels#hidden\" label=\"hidden\"/>");
+                }
+                out.element("title", title).raw("</entry>");
+            }
+        };
         
-        new Request<Void>() {
-            public Void run() throws IOException, XmlPullParserException {
-                ByteArrayContent content = new ByteArrayContent(builder.toString());
-                HttpRequest request = writelyRequestFactory.buildPostRequest(url, content);
+        try {
+            new Request<Void>(RequestEvent.CREATE_SPREADSHEET) {
+                public Void run() throws IOException, XmlPullParserException {
+                    HttpRequest request = writelyRequestFactory.buildPostRequest(url, content);
                 
-                request.enableGZipContent = false;
-                request.headers.contentType = "application/atom+xml";
-                request.headers.acceptEncoding = null;
-                request.headers.contentEncoding = null;
+                    request.enableGZipContent = false;
+                    request.headers.contentType = "application/atom+xml";
+                    request.headers.acceptEncoding = null;
+                    request.headers.contentEncoding = null;
                 
-                HttpResponse response = request.execute();
+                    HttpResponse response = send(request);
                                  
-                // can't find a way to use the response to find a link to the created
-                // spreadsheet, as a Spreadsheet API link, so ignore() it for now.
-                response.ignore(); 
-                return null;
-            }
-        }.execute();
+                    // can't find a way to use the response to find a link to the created
+                    // spreadsheet, as a Spreadsheet API link, so ignore() it for now.
+                    response.ignore(); 
+                    return null;
+                }
+            }.execute();
+        } finally {
+            // any cached query may match the new title, also if it failed after it was created
+            MetadataCache<SpreadsheetEntry> cache = spreadsheetCache;
+            if (cache != null)
+                cache.clear();
+        }
     }
     
 
@@ -331,6 +914,12 @@ public class SpreadsheetsService {
         @Key String sq;
         @Key String orderby;
         @Key Boolean reverse;
+        @Key("start-index") Integer startIndex;
+        @Key("max-results") Integer maxResults;
+        @Key("min-row") Integer minRow;
+        @Key("max-row") Integer maxRow;
+        @Key("min-col") Integer minCol;
+        @Key("max-col") Integer maxCol;
 
         WiseUrl(String url) {
             super(url);
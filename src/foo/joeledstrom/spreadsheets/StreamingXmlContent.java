@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+
+import com.google.api.client.http.HttpContent;
+
+// Request body that is written directly to the connection while it is being generated, instead of
+// being built up in a StringBuilder and copied into a ByteArrayContent first.
+// The length is unknown up front, so the transport sends it with chunked transfer encoding.
+// writeXml(..) may be called more than once if the request is retried, so it must not consume its input.
+abstract class StreamingXmlContent implements HttpContent {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    abstract void writeXml(AtomWriter out) throws IOException;
+
+    public void writeTo(OutputStream out) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+        writeXml(new AtomWriter(writer));
+        writer.flush(); // the transport owns the stream, don't close it
+    }
+
+    public long getLength() {
+        return -1;
+    }
+
+    public String getEncoding() {
+        return null;
+    }
+
+    // same as ByteArrayContent, the Content-Type header is set on the request by the caller
+    public String getType() {
+        return null;
+    }
+
+    public boolean retrySupported() {
+        return true;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+
+// Supplies the one HttpTransport a SpreadsheetsService sends all its requests through, so the
+// spreadsheets and the documents feeds share its connections.
+//
+// AndroidTransportProvider is the default, PooledTransportProvider is meant for servers.
+public abstract class TransportProvider {
+
+    private static final Logger LOGGER = Logger.getLogger(TransportProvider.class.getName());
+
+    private static final ThreadLocal<RequestEvent> meteredEvent = new ThreadLocal<RequestEvent>();
+
+    // called once, when the service is built
+    public abstract HttpTransport getTransport();
+
+    // Opens a connection (and does the TLS handshake) to the host of every url ahead of the first
+    // real request, by sending an unauthenticated GET and throwing away the answer. Failures are
+    // only logged, the real request will fail the same way.
+    public void warmUp(List<String> urls) {
+        HttpTransport transport = getTransport();
+        for (String url : urls) {
+            try {
+                transport.createRequestFactory().buildGetRequest(new GenericUrl(url)).execute().ignore();
+            } catch (HttpResponseException e) {
+                // eg. 401, the connection is open anyway
+                ignore(e.response);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "warm up of " + url + " failed", e);
+            }
+        }
+    }
+
+    // releases the response, failures are swallowed so they can't hide the exception being handled
+    static void ignore(HttpResponse response) {
+        try {
+            response.ignore();
+        } catch (IOException e) {
+            // the connection is closed instead of reused
+        }
+    }
+
+    public void shutdown() throws IOException {
+        getTransport().shutdown();
+    }
+
+    // Responses to the requests this thread executes through a metered() transport are counted into event,
+    // until it's called again (null stops counting).
+    static void meterResponses(RequestEvent event) {
+        if (event == null)
+            meteredEvent.remove();
+        else
+            meteredEvent.set(event);
+    }
+
+    // Wraps transport so the bytes of every response body are counted as they are read from the connection
+    // (the compressed size if gzipped, and chunked bodies too, which have no Content-Length), and the time
+    // spent reading them is network time, not parse time.
+    static HttpTransport metered(HttpTransport transport) {
+        return new MeteredTransport(transport);
+    }
+
+    // for a transport that was set up by the caller
+    public static TransportProvider of(final HttpTransport transport) {
+        return new TransportProvider() {
+            public HttpTransport getTransport() {
+                return transport;
+            }
+        };
+    }
+
+
+    // HttpTransport only lets subclasses build requests, so the ones of the wrapped transport are built
+    // through reflection.
+    private static class MeteredTransport extends HttpTransport {
+        private static final Method BUILD_DELETE = buildMethod("buildDeleteRequest");
+        private static final Method BUILD_GET = buildMethod("buildGetRequest");
+        private static final Method BUILD_HEAD = buildMethod("buildHeadRequest");
+        private static final Method BUILD_PATCH = buildMethod("buildPatchRequest");
+        private static final Method BUILD_POST = buildMethod("buildPostRequest");
+        private static final Method BUILD_PUT = buildMethod("buildPutRequest");
+
+        private final HttpTransport transport;
+
+        MeteredTransport(HttpTransport transport) {
+            this.transport = transport;
+            this.defaultHeaders = transport.defaultHeaders;
+            this.intercepters = transport.intercepters;
+        }
+
+        private static Method buildMethod(String name) {
+            try {
+                Method method = HttpTransport.class.getDeclaredMethod(name, String.class);
+                method.setAccessible(true);
+                return method;
+            } catch (NoSuchMethodException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private LowLevelHttpRequest build(Method method, String url) throws IOException {
+            try {
+                return new MeteredRequest((LowLevelHttpRequest)method.invoke(transport, url));
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException)e.getCause();
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException)e.getCause();
+                throw new RuntimeException(e.getCause());
+            } catch (IllegalAccessException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        protected LowLevelHttpRequest buildDeleteRequest(String url) throws IOException {
+            return build(BUILD_DELETE, url);
+        }
+        protected LowLevelHttpRequest buildGetRequest(String url) throws IOException {
+            return build(BUILD_GET, url);
+        }
+        protected LowLevelHttpRequest buildHeadRequest(String url) throws IOException {
+            return build(BUILD_HEAD, url);
+        }
+        protected LowLevelHttpRequest buildPatchRequest(String url) throws IOException {
+            return build(BUILD_PATCH, url);
+        }
+        protected LowLevelHttpRequest buildPostRequest(String url) throws IOException {
+            return build(BUILD_POST, url);
+        }
+        protected LowLevelHttpRequest buildPutRequest(String url) throws IOException {
+            return build(BUILD_PUT, url);
+        }
+
+        public boolean supportsHead() {
+            return transport.supportsHead();
+        }
+        public boolean supportsPatch() {
+            return transport.supportsPatch();
+        }
+        public void shutdown() throws IOException {
+            transport.shutdown();
+        }
+    }
+
+    private static class MeteredRequest extends LowLevelHttpRequest {
+        private final LowLevelHttpRequest request;
+
+        MeteredRequest(LowLevelHttpRequest request) {
+            this.request = request;
+        }
+
+        public void addHeader(String name, String value) {
+            request.addHeader(name, value);
+        }
+        public void setContent(HttpContent content) throws IOException {
+            request.setContent(content);
+        }
+        public void setTimeout(int connectTimeout, int readTimeout) throws IOException {
+            request.setTimeout(connectTimeout, readTimeout);
+        }
+
+        // runs on the thread that called HttpRequest.execute(), so the event is the one of the request
+        public LowLevelHttpResponse execute() throws IOException {
+            RequestEvent event = meteredEvent.get();
+            LowLevelHttpResponse response = request.execute();
+            return event == null ? response : new MeteredResponse(response, event);
+        }
+    }
+
+    private static class MeteredResponse extends LowLevelHttpResponse {
+        private final LowLevelHttpResponse response;
+        private final RequestEvent event;
+
+        MeteredResponse(LowLevelHttpResponse response, RequestEvent event) {
+            this.response = response;
+            this.event = event;
+        }
+
+        public InputStream getContent() throws IOException {
+            InputStream content = response.getContent();
+            return content == null ? null : new MeteredStream(content, event);
+        }
+        public String getContentEncoding() {
+            return response.getContentEncoding();
+        }
+        public long getContentLength() {
+            return response.getContentLength();
+        }
+        public String getContentType() {
+            return response.getContentType();
+        }
+        public String getStatusLine() {
+            return response.getStatusLine();
+        }
+        public int getStatusCode() {
+            return response.getStatusCode();
+        }
+        public String getReasonPhrase() {
+            return response.getReasonPhrase();
+        }
+        public int getHeaderCount() {
+            return response.getHeaderCount();
+        }
+        public String getHeaderName(int index) {
+            return response.getHeaderName(index);
+        }
+        public String getHeaderValue(int index) {
+            return response.getHeaderValue(index);
+        }
+        public void disconnect() throws IOException {
+            response.disconnect();
+        }
+    }
+
+    // may be read on another thread than the one that sent the request (eg. FeedIterator.prefetch(..))
+    private static class MeteredStream extends FilterInputStream {
+        private final RequestEvent event;
+
+        MeteredStream(InputStream in, RequestEvent event) {
+            super(in);
+            this.event = event;
+        }
+
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = in.read();
+            event.bodyRead(b == -1 ? 0 : 1, System.nanoTime() - start);
+            return b;
+        }
+
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            long start = System.nanoTime();
+            int read = in.read(buffer, offset, length);
+            event.bodyRead(Math.max(read, 0), System.nanoTime() - start);
+            return read;
+        }
+
+        public long skip(long n) throws IOException {
+            long start = System.nanoTime();
+            long skipped = in.skip(n);
+            event.bodyRead(skipped, System.nanoTime() - start);
+            return skipped;
+        }
+    }
+}
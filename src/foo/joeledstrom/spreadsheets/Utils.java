@@ -6,20 +6,48 @@ public class Utils {
 	private static String[] encoded = {"&amp;", "&quot;", "&lt;", "&gt;", "&apos;"};
 			
 	
+	// single pass, returns result itself if there is nothing to escape
 	public static String encodeXML(String result) {
+		StringBuilder builder = null;
+		int start = 0;
 		
-		for (int i = 0; i < unencoded.length; i++) {
-			result = result.replace(unencoded[i], encoded[i]);
+		for (int i = 0; i < result.length(); i++) {
+			int index = "&\"<>'".indexOf(result.charAt(i));
+			if (index == -1)
+				continue;
+			
+			if (builder == null)
+				builder = new StringBuilder(result.length() + 16);
+			builder.append(result, start, i).append(encoded[index]);
+			start = i + 1;
 		}
 		
-		return result;
+		if (builder == null)
+			return result;
+		
+		return builder.append(result, start, result.length()).toString();
 	}
 	
+	// single pass, so "&amp;lt;" decodes to "&lt;" (not "<")
 	public static String decodeXML(String result) {
-		for (int i = 0; i < unencoded.length; i++) {
-			result = result.replace(encoded[i], unencoded[i]);
+		StringBuilder builder = null;
+		int start = 0;
+		
+		for (int i = result.indexOf('&'); i != -1; i = result.indexOf('&', i + 1)) {
+			for (int j = 0; j < encoded.length; j++) {
+				if (result.startsWith(encoded[j], i)) {
+					if (builder == null)
+						builder = new StringBuilder(result.length());
+					builder.append(result, start, i).append(unencoded[j]);
+					start = i + encoded[j].length();
+					break;
+				}
+			}
 		}
 		
-		return result;
+		if (builder == null)
+			return result;
+		
+		return builder.append(result, start, result.length()).toString();
 	}
 }
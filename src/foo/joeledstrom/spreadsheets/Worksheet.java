@@ -16,21 +16,30 @@
 
 package foo.joeledstrom.spreadsheets;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Formatter;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.xmlpull.v1.XmlPullParserException;
 
 import com.google.api.client.googleapis.GoogleHeaders;
-import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.HttpContent;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpResponse;
@@ -40,6 +49,7 @@ import com.google.api.client.util.Key;
 import com.google.api.client.xml.GenericXml;
 import com.google.api.client.xml.XmlNamespaceDictionary;
 
+import foo.joeledstrom.spreadsheets.Spreadsheet.WorksheetEntry;
 import foo.joeledstrom.spreadsheets.SpreadsheetsService.FeedIterator;
 import foo.joeledstrom.spreadsheets.SpreadsheetsService.SpreadsheetsException;
 import foo.joeledstrom.spreadsheets.SpreadsheetsService.WiseUrl;
@@ -55,11 +65,12 @@ public class Worksheet {
     private String cellsFeed;
     private String editUrl;
     private int rowCount;
+    private int colCount;
     
     private AtomParser atomParser;
 
     Worksheet(SpreadsheetsService service, String id, String title, String listFeed, 
-              String cellsFeed, String editUrl, String rowCount) {
+              String cellsFeed, String editUrl, String rowCount, String colCount) {
         this.service = service;
         this.id = id;
         this.title = title;
@@ -67,21 +78,26 @@ public class Worksheet {
         this.cellsFeed = cellsFeed;
         this.editUrl = editUrl;
         this.rowCount = Integer.parseInt(rowCount);
+        this.colCount = Integer.parseInt(colCount);
     }
 
     public void applyDelete() throws IOException, SpreadsheetsException {
         
-        service.new Request<Void>() {
-            public Void run() throws IOException, XmlPullParserException {
-                WiseUrl url = new WiseUrl(editUrl);
-                HttpRequest request = service.wiseRequestFactory.buildDeleteRequest(url);
-                
-                request.headers.ifMatch = "*";
-                request.execute().ignore();
-                
-                return null;
-            }
-        }.execute();
+        try {
+            service.new Request<Void>(RequestEvent.DELETE_WORKSHEET) {
+                public Void run() throws IOException, XmlPullParserException {
+                    WiseUrl url = new WiseUrl(editUrl);
+                    HttpRequest request = service.wiseRequestFactory.buildDeleteRequest(url);
+                    
+                    request.headers.ifMatch = "*";
+                    send(request).ignore();
+                    
+                    return null;
+                }
+            }.execute();
+        } finally {
+            service.worksheetsChanged(null); // the worksheets feed it's listed in isn't known here
+        }
        
     }
 
@@ -131,43 +147,19 @@ public class Worksheet {
     Collection<RowUploadToken> batchUpload(final Iterable<RowUploadToken> rows) throws IOException, SpreadsheetsException {
         
         final Map<String, RowUploadToken> transfersInFlight = new HashMap<String, RowUploadToken>();
-        final StringBuilder builder = new StringBuilder();
-       
-        builder.append("<feed xmlns=\"http://www.w3.org/2005/Atom\" ")
-        .append("xmlns:batch=\"http://schemas.google.com/gdata/batch\" ")
-        .append("xmlns:gs=\"http://schemas.google.com/spreadsheets/2006\">")
-        .append("<id>").append(cellsFeed).append("</id>");
+        final List<RowUploadToken> tokens = new ArrayList<RowUploadToken>();
         
         for (RowUploadToken token : rows) {
-
-            for (int i = 0; i < token.cells.size(); i++) {
-     
-                // i thought adding the UUID below would fix the "Feed processing was interrupted."
-                // "a response has already been sent for batch operation update id=XXXXXX" errors.
-                // but doesn't seem like it           
-                String batchId = token.hashCode() + "_" + i + UUID.randomUUID();
-                
-                builder.append("<entry>")
-                .append("<batch:id>").append(batchId).append("</batch:id>")
-                .append("<batch:operation type=\"update\"/>")
-                .append("<id>").append(cellsFeed).append("/R"+token.row+"C"+(i+1)).append("</id>")
-                .append("<link rel=\"edit\" type=\"application/atom+xml\" ")
-                .append("href=\"").append(cellsFeed).append("/R"+token.row+"C"+(i+1)).append("\"/>")
-                .append("<gs:cell row=\"").append(token.row)
-                .append("\" col=\"").append(i+1)
-                .append("\" inputValue=\"").append(token.cells.get(i)).append("\"/>")
-                .append("</entry>");
-            }
             token.cellsUploaded = 0;  // reset this because the user may upload the same token again, after failure
             transfersInFlight.put(token.hashCode() + "", token);
-            
+            tokens.add(token);
         }
-        builder.append("</feed>");
         
-        service.new Request<Void>() {
+        final HttpContent content = batchContent(tokens);
+        
+        service.new Request<Void>(RequestEvent.BATCH_UPLOAD) {
             public Void run() throws IOException, XmlPullParserException {
                 WiseUrl url = new WiseUrl(cellsFeed + "/batch");
-                HttpContent content = new ByteArrayContent(builder.toString());
                 HttpRequest request = service.wiseRequestFactory.buildPostRequest(url, content);
                 request.enableGZipContent = false;
                 
@@ -177,7 +169,7 @@ public class Worksheet {
                 headers.contentEncoding = null;
                 headers.ifMatch = "*";
                 
-                HttpResponse response = request.execute();
+                HttpResponse response = send(request);
                 
                 AtomFeedParser<CellsFeed, CellsEntry> feedParser = 
                     AtomFeedParser.create(response, CELLS_FEED_NS, CellsFeed.class, CellsEntry.class);
@@ -211,6 +203,7 @@ public class Worksheet {
                     {} // really ignore this
                 }
                 
+                batchCompleted(tokens.size(), transfersInFlight.size());
                 return null;
             }
         }.execute();
@@ -219,7 +212,49 @@ public class Worksheet {
         // return the failed transfers
         return transfersInFlight.values();
     }
+
+    // the batch feed updating every cell of the tokens
+    HttpContent batchContent(final List<RowUploadToken> tokens) {
+        return new StreamingXmlContent() {
+            void writeXml(AtomWriter out) throws IOException {
+                out.raw("<feed xmlns=\"http://www.w3.org/2005/Atom\" ")
+                .raw("xmlns:batch=\"http://schemas.google.com/gdata/batch\" ")
+                .raw("xmlns:gs=\"http://schemas.google.com/spreadsheets/2006\">")
+                .element("id", cellsFeed);
+                
+                for (RowUploadToken token : tokens) {
+        
+                    for (int i = 0; i < token.cells.size(); i++) {
+             
+                        // i thought adding the UUID below would fix the "Feed processing was interrupted."
+                        // "a response has already been sent for batch operation update id=XXXXXX" errors.
+                        // but doesn't seem like it           
+                        // batch id: <token hash>_<cell index><UUID>
+                        out.raw("<entry>")
+                        .raw("<batch:id>").number(token.hashCode()).raw('_').number(i)
+                        .raw(UUID.randomUUID().toString()).raw("</batch:id>")
+                        .raw("<batch:operation type=\"update\"/>")
+                        .raw("<id>").text(cellsFeed).raw("/R").number(token.row).raw('C').number(i+1).raw("</id>")
+                        .raw("<link rel=\"edit\" type=\"application/atom+xml\" ")
+                        .raw("href=\"").attribute(cellsFeed).raw("/R").number(token.row).raw('C').number(i+1).raw("\"/>")
+                        .raw("<gs:cell row=\"").number(token.row)
+                        .raw("\" col=\"").number(i+1)
+                        .raw("\" inputValue=\"").attribute(token.cells.get(i)).raw("\"/>")
+                        .raw("</entry>");
+                    }
+                }
+                out.raw("</feed>");
+            }
+        };
+    }
     
+    // same as batchUpload(rows), but splits the rows into several smaller batch feeds and uploads up to
+    // maxInFlight of them concurrently. failed rows of every chunk (including rejected chunks) are returned.
+    Collection<RowUploadToken> batchUpload(Iterable<RowUploadToken> rows, int maxInFlight)
+                                           throws IOException, SpreadsheetsException {
+        return new BatchUploader(this, cellsFeed, maxInFlight).upload(rows);
+    }
+
   
     
     public void setColumns(List<String> columnNames) throws IOException, SpreadsheetsException {
@@ -246,19 +281,11 @@ public class Worksheet {
             atomParser.namespaceDictionary = LIST_FEED_NS;
         }
         
-        final StringBuilder builder = new StringBuilder();
-            
-        builder.append("<entry xmlns=\"http://www.w3.org/2005/Atom\" xmlns:gsx=\"http://schemas.google.com/spreadsheets/2006/extended\">");
-        Formatter formatter = new Formatter(builder, Locale.US); 
-        for (Map.Entry<String, String> value : values.entrySet()) 
-            formatter.format("<gsx:%1$s>%2$s</gsx:%1$s>", Utils.encodeXML(value.getKey()), Utils.encodeXML(value.getValue()));
-        builder.append("</entry>");
-               
-        
-        return service.new Request<WorksheetRow>() {
+        final HttpContent content = rowContent(values);
+        
+        WorksheetRow row = service.new Request<WorksheetRow>(RequestEvent.ADD_ROW) {
             public WorksheetRow run() throws IOException, XmlPullParserException {
                 WiseUrl url = new WiseUrl(listFeed);
-                HttpContent content = new ByteArrayContent(builder.toString());    
                 HttpRequest request = service.wiseRequestFactory.buildPostRequest(url, content);
                 request.enableGZipContent = false;
                 
@@ -267,7 +294,7 @@ public class Worksheet {
                 headers.acceptEncoding = null;
                 headers.contentEncoding = null;
                 
-                HttpResponse response = request.execute();
+                HttpResponse response = send(request);
         
                 
                 ListEntry entry = atomParser.parse(response, ListEntry.class);
@@ -277,7 +304,297 @@ public class Worksheet {
             }
         }.execute();
         
+        service.rowStored(row);
+        return row;
+    }
+
+    // list feed entry with the given column values
+    static HttpContent rowContent(final Map<String, String> values) {
+        return new StreamingXmlContent() {
+            void writeXml(AtomWriter out) throws IOException {
+                out.raw("<entry xmlns=\"http://www.w3.org/2005/Atom\" xmlns:gsx=\"http://schemas.google.com/spreadsheets/2006/extended\">");
+                for (Map.Entry<String, String> value : values.entrySet()) 
+                    out.gsx(value.getKey(), value.getValue());
+                out.raw("</entry>");
+            }
+        };
+    }
+    
+    // Appends all rows below the last row of the list feed, using the cells batch feed instead of one POST per row.
+    // Keys of each map are matched against the header row (either as written or in their gsx: list feed form).
+    // The worksheet grid is grown if needed. Returns the rows that failed to upload, use getRows() afterwards
+    // if the appended rows are needed as WorksheetRow objects.
+    // Rows with no values (or only null/empty ones) are skipped: a blank row ends the list feed, so writing
+    // one would hide all rows below it from getRows().
+    // Calls for the same worksheet through one service run one at a time. Calls from other clients (or other
+    // services) at the same time start at the same row and overwrite each other's rows.
+    public Collection<Map<String, String>> addRows(Iterable<Map<String, String>> rows) 
+                                                  throws IOException, SpreadsheetsException {
+        synchronized (service.appendLock(listFeed)) {
+            return appendRows(rows);
+        }
+    }
+
+    private Collection<Map<String, String>> appendRows(Iterable<Map<String, String>> rows) 
+                                                      throws IOException, SpreadsheetsException {
+        
+        Map<String, Integer> columnPositions = getHeaderColumnPositions();
+        
+        int firstRow = getDataRowCount(null) + 2; // header row + data rows
+        int nextRow = firstRow;
+        
+        final Map<RowUploadToken, Map<String, String>> tokens = new HashMap<RowUploadToken, Map<String, String>>();
+        
+        for (Map<String, String> row : rows) {
+            List<String> cells = new ArrayList<String>();
+            boolean blank = true;
+            
+            for (Map.Entry<String, String> value : row.entrySet()) {
+                Integer col = columnPositions.get(value.getKey());
+                if (col == null)
+                    col = columnPositions.get(toListFeedName(value.getKey()));
+                if (col == null)
+                    throw new IllegalArgumentException("No column named: " + value.getKey());
+                
+                while (cells.size() < col)
+                    cells.add("");
+                cells.set(col - 1, value.getValue() == null ? "" : value.getValue());
+                if (value.getValue() != null && value.getValue().length() > 0)
+                    blank = false;
+            }
+            
+            if (blank)
+                continue;
+            
+            tokens.put(new RowUploadToken(nextRow++, cells), row);
+        }
+        
+        if (tokens.size() == 0)
+            return new ArrayList<Map<String, String>>();
+        
+        int lastRow = nextRow - 1;
+        if (lastRow > rowCount)
+            growRows(lastRow);
+        
+        Collection<RowUploadToken> failedUploads = batchUpload(tokens.keySet(), BatchUploader.DEFAULT_MAX_IN_FLIGHT);
+        
+        List<Map<String, String>> failedRows = new ArrayList<Map<String, String>>();
+        for (RowUploadToken token : failedUploads)
+            failedRows.add(tokens.get(token));
+        
+        return failedRows;
+    }
+    
+    // the list feed uses lower case column names with everything except letters, digits, '-' and '.' removed
+    static String toListFeedName(String columnName) {
+        StringBuilder builder = new StringBuilder(columnName.length());
+        for (int i = 0; i < columnName.length(); i++) {
+            char c = columnName.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '-' || c == '.')
+                builder.append(Character.toLowerCase(c));
+        }
+        return builder.toString();
+    }
+    
+    // The cells in rows minRow..maxRow and columns minCol..maxCol (from 1, inclusive, row 1 is the header row),
+    // read from the cells feed so only that block is transferred. Values are as displayed (formulas computed).
+    public CellRange readRange(int minRow, int maxRow, int minCol, int maxCol) throws IOException, SpreadsheetsException {
+        return readRange(minRow, maxRow, minCol, maxCol, false);
+    }
+    
+    // inputValues: the values as entered (eg. "=A1*2") instead of as displayed
+    public CellRange readRange(final int minRow, final int maxRow, final int minCol, final int maxCol, 
+                               final boolean inputValues) throws IOException, SpreadsheetsException {
+        final CellRange range = new CellRange(minRow, maxRow, minCol, maxCol);
+        
+        return service.new Request<CellRange>(RequestEvent.READ_RANGE) {
+            public CellRange run() throws IOException, XmlPullParserException {
+                WiseUrl url = new WiseUrl(cellsFeed);
+                url.minRow = minRow;
+                url.maxRow = maxRow;
+                url.minCol = minCol;
+                url.maxCol = maxCol;
+                url.fields = "entry(gs:cell)";
+                
+                HttpResponse response = send(service.wiseRequestFactory.buildGetRequest(url));
+                
+                CellsFeedDecoder decoder = new CellsFeedDecoder(response.getContent(), inputValues);
+                try {
+                    decoder.readInto(range);
+                } finally {
+                    decoder.close();
+                }
+                return range;
+            }
+        }.execute();
+    }
+    
+    // maps the names in the header row (row 1) to their column numbers, both as written and in list feed form
+    private Map<String, Integer> getHeaderColumnPositions() throws IOException, SpreadsheetsException {
+        return service.new Request<Map<String, Integer>>(RequestEvent.GET_HEADER) {
+            public Map<String, Integer> run() throws IOException, XmlPullParserException {
+                WiseUrl url = new WiseUrl(cellsFeed);
+                url.minRow = 1;
+                url.maxRow = 1;
+                
+                HttpResponse response = send(service.wiseRequestFactory.buildGetRequest(url));
+                
+                AtomFeedParser<CellsFeed, CellsEntry> feedParser = 
+                    AtomFeedParser.create(response, CELLS_FEED_NS, CellsFeed.class, CellsEntry.class);
+                
+                Map<String, Integer> positions = new HashMap<String, Integer>();
+                try {
+                    feedParser.parseFeed();
+                    
+                    while (true) {
+                        CellsEntry entry = feedParser.parseNextEntry();
+                        if (entry == null)
+                            break;
+                        if (entry.cell == null || entry.cell.inputValue == null)
+                            continue;
+                        
+                        Integer col = Integer.valueOf(entry.cell.col);
+                        positions.put(toListFeedName(entry.cell.inputValue), col);
+                        positions.put(entry.cell.inputValue, col);
+                    }
+                } finally {
+                    try {
+                        feedParser.close();
+                    } catch (IOException e) 
+                    {} // really ignore this
+                }
+                
+                return positions;
+            }
+        }.execute();
+    }
+    
+    // number of rows the list feed currently contains (not counting the header row), matching sq if not null
+    private int getDataRowCount(final String sq) throws IOException, SpreadsheetsException {
+        return service.new Request<Integer>(RequestEvent.GET_ROW_COUNT) {
+            public Integer run() throws IOException, XmlPullParserException {
+                WiseUrl url = new WiseUrl(listFeed);
+                url.sq = sq;
+                url.maxResults = 1;
+                
+                HttpResponse response = send(service.wiseRequestFactory.buildGetRequest(url));
+                
+                AtomFeedParser<ListFeed, ListEntry> feedParser = 
+                    AtomFeedParser.create(response, LIST_FEED_NS, ListFeed.class, ListEntry.class);
+                try {
+                    return feedParser.parseFeed().totalResults;
+                } finally {
+                    try {
+                        feedParser.close();
+                    } catch (IOException e) 
+                    {} // really ignore this
+                }
+            }
+        }.execute();
+    }
+    
+    // Grows the grid to at least rows rows, never shrinking it: rowCount may be stale (another client may
+    // have grown it since), so the current size is read again, and the resize fails with 412 if the worksheet
+    // was changed in between.
+    private void growRows(int rows) throws IOException, SpreadsheetsException {
+        while (true) {
+            WorksheetEntry entry = getEntry();
+            setSize(entry);
+            if (rowCount >= rows)
+                return;
+
+            try {
+                resize(Math.max(rows, rowCount), colCount, entry.etag);
+                return;
+            } catch (SpreadsheetsException e) {
+                if (!"412 Precondition Failed".equals(e.getMessage()))
+                    throw e;
+            }
+        }
+    }
+
+    private WorksheetEntry getEntry() throws IOException, SpreadsheetsException {
+        final AtomParser atomParser = new AtomParser();
+        atomParser.namespaceDictionary = Spreadsheet.WORKSHEET_FEED_NS;
+
+        return service.new Request<WorksheetEntry>(RequestEvent.RESIZE_WORKSHEET) {
+            public WorksheetEntry run() throws IOException, XmlPullParserException {
+                HttpRequest request = service.wiseRequestFactory.buildGetRequest(new WiseUrl(id));
+                return atomParser.parse(send(request), WorksheetEntry.class);
+            }
+        }.execute();
+    }
+
+    private void setSize(WorksheetEntry entry) throws SpreadsheetsException {
+        try {
+            editUrl = entry.getEditUrl();
+        } catch (XmlPullParserException e) {
+            throw new SpreadsheetsException(e.getMessage());
+        }
+        rowCount = Integer.parseInt(entry.rowCount);
+        colCount = Integer.parseInt(entry.colCount);
+    }
+
+    // etag is for If-Match
+    private void resize(final int rows, final int cols, final String etag) throws IOException, SpreadsheetsException {
+        final AtomParser atomParser = new AtomParser();
+        atomParser.namespaceDictionary = Spreadsheet.WORKSHEET_FEED_NS;
+        
+        final HttpContent content = new StreamingXmlContent() {
+            void writeXml(AtomWriter out) throws IOException {
+                out.raw("<entry xmlns=\"http://www.w3.org/2005/Atom\" xmlns:gs=\"http://schemas.google.com/spreadsheets/2006\">")
+                .element("title", title) 
+                .raw("<gs:rowCount>").number(rows).raw("</gs:rowCount>")
+                .raw("<gs:colCount>").number(cols).raw("</gs:colCount>")
+                .raw("</entry>");
+            }
+        };
         
+        WorksheetEntry entry;
+        try {
+            entry = service.new Request<WorksheetEntry>(RequestEvent.RESIZE_WORKSHEET) {
+                public WorksheetEntry run() throws IOException, XmlPullParserException {
+                    WiseUrl url = new WiseUrl(editUrl);
+                    HttpRequest request = service.wiseRequestFactory.buildPutRequest(url, content);
+                    request.enableGZipContent = false;
+                
+                    GoogleHeaders headers = (GoogleHeaders)request.headers;
+                    headers.contentType = "application/atom+xml";
+                    headers.acceptEncoding = null;
+                    headers.contentEncoding = null;
+                    headers.ifMatch = etag;
+                
+                    HttpResponse response = send(request);
+                
+                    return atomParser.parse(response, WorksheetEntry.class);
+                }
+            }.execute();
+        } finally {
+            service.worksheetsChanged(null); // the cached entries have the old size
+        }
+        
+        setSize(entry);
+    }
+
+    // opt-in local copy of this worksheet stored in file, call refresh() on it to (re)download the rows
+    public WorksheetReplica openReplica(File file) throws IOException {
+        return new WorksheetReplica(this, service, file);
+    }
+
+    // row level insert/update/delete events, see WorksheetSync
+    public WorksheetSync openSync(long minIntervalMillis, long maxIntervalMillis, WorksheetSync.Listener listener) {
+        return new WorksheetSync(this, minIntervalMillis, maxIntervalMillis, listener);
+    }
+    
+    // reads all rows into memory, see WorksheetSnapshot
+    public WorksheetSnapshot openSnapshot() throws IOException, SpreadsheetsException {
+        return new WorksheetSnapshot(this, service, listFeed);
+    }
+    
+    // edits made through the session are written back in batches, see WriteBehindSession
+    public WriteBehindSession openWriteBehindSession(int maxRows, long maxDelayMillis, 
+                                                     WriteBehindSession.Listener listener) {
+        return new WriteBehindSession(maxRows, maxDelayMillis, listener);
     }
 
     static final XmlNamespaceDictionary LIST_FEED_NS = new XmlNamespaceDictionary()
@@ -290,38 +607,224 @@ public class Worksheet {
     public FeedIterator<WorksheetRow> getRows() throws IOException, SpreadsheetsException {
         return getRows(null, null, false);
     }
+    // served from the service's row cache when the feed hasn't changed since the last identical query
     public FeedIterator<WorksheetRow> getRows(final String sq, final String orderby, final boolean reverse) 
                                               throws IOException, SpreadsheetsException {
-        return getRows(sq, orderby, reverse, null);
+        RowCache cache = service.getRowCache();
+        if (cache == null)
+            return getRows(sq, orderby, reverse, null);
+        
+        String key = RowCache.key(listFeed, sq, orderby, reverse);
+        RowCache.Entry cached = cache.get(key);
+        
+        FeedIterator<WorksheetRow> rows = queryRows(RequestEvent.GET_ROWS, listQuery(sq, orderby, reverse), cached == null ? null : cached.etag, cache, key);
+        
+        if (rows == null) // 304 Not Modified
+            return cachedRows(cached);
+        
+        return rows;
     }
+    // returns null if lastQuery is supplied and the feed hasn't changed since then
     public FeedIterator<WorksheetRow> getRows(final String sq, final String orderby, 
                                               final boolean reverse, final FeedIterator<WorksheetRow> lastQuery) 
                                               throws IOException, SpreadsheetsException {
+        return queryRows(RequestEvent.GET_ROWS, listQuery(sq, orderby, reverse), lastQuery == null ? null : lastQuery.etag, null, null);
+    }
+    // only the given columns are downloaded (partial response), the returned rows can't be committed
+    // since that would clear the columns that weren't read
+    public FeedIterator<WorksheetRow> getRows(Collection<String> columns, String sq, String orderby, boolean reverse) 
+                                              throws IOException, SpreadsheetsException {
+        WiseUrl url = listQuery(sq, orderby, reverse);
+        url.fields = projection(columns);
+        return queryRows(RequestEvent.GET_ROWS, url, null, null, null);
+    }
+    
+    // Sends what it can of the query to the server, and checks the rest on the rows as they arrive,
+    // see RowQuery. Without a limit the row cache is used like in getRows(sq, orderby, reverse).
+    public FeedIterator<WorksheetRow> getRows(final RowQuery query) throws IOException, SpreadsheetsException {
+        final FeedIterator<WorksheetRow> source;
+        if (query.getLimit() == null) {
+            source = getRows(query.getSq(), query.getOrderby(), query.isReverse());
+        } else {
+            WiseUrl url = listQuery(query.getSq(), query.getOrderby(), query.isReverse());
+            url.maxResults = query.getMaxResults();
+            source = queryRows(RequestEvent.GET_ROWS, url, null, null, null);
+        }
+        
+        if (query.getUnpushedPredicates().isEmpty())
+            return source;
+        
+        return service.new FeedIterator<WorksheetRow>() {
+            private int returned;
+            
+            {
+                etag = source.etag;
+            }
+            
+            public WorksheetRow getNextEntry() throws IOException, SpreadsheetsException {
+                if (query.getLimit() != null && returned == query.getLimit()) {
+                    close();
+                    return null;
+                }
+                while (true) {
+                    WorksheetRow row = source.getNextEntry();
+                    if (row == null) {
+                        close();
+                        return null;
+                    }
+                    if (query.matchesUnpushed(row)) {
+                        returned++;
+                        return row;
+                    }
+                }
+            }
+            
+            void onClose() {
+                source.close();
+            }
+        };
+    }
+    
+    // The rows of getRows(sq, orderby, reverse) pushed to subscribers as they ask for them, see FeedPublisher.
+    // The feed is read and parsed on the executor.
+    public FeedPublisher<WorksheetRow> publishRows(final String sq, final String orderby, final boolean reverse,
+                                                   Executor executor) {
+        return new FeedPublisher<WorksheetRow>(executor) {
+            FeedIterator<WorksheetRow> open() throws IOException, SpreadsheetsException {
+                return getRows(sq, orderby, reverse);
+            }
+        };
+    }
+    
+    // partial response expression selecting the entry fields WorksheetRow needs plus the given columns
+    static String projection(Collection<String> columns) {
+        StringBuilder fields = new StringBuilder("entry(@gd:etag,id,link[@rel='edit'](@rel,@href)");
+        for (String column : columns)
+            fields.append(",gsx:").append(toListFeedName(column));
+        return fields.append(')').toString();
+    }
+    
+    private WiseUrl listQuery(String sq, String orderby, boolean reverse) {
+        WiseUrl url = new WiseUrl(listFeed);
+        url.sq = sq;
+        if (orderby != null)
+            url.orderby = "column:" + orderby;
+        url.reverse = reverse;
+        return url;
+    }
+    
+    // Reads the rows matching sq in pages of pageSize rows (start-index/max-results), fetching up to threads pages
+    // at the same time. If ordered is false, pages are returned in the order they arrive.
+    // The row count is taken once up front, rows appended during the scan may be missed. The pages are fetched
+    // on daemon threads that run until the last page is read or close() is called.
+    public FeedIterator<WorksheetRow> getRowsParallel(final String sq, final String orderby, final boolean reverse,
+                                                      final int pageSize, final int threads, final boolean ordered) 
+                                                      throws IOException, SpreadsheetsException {
+        if (pageSize < 1 || threads < 1)
+            throw new IllegalArgumentException("pageSize and threads must be at least 1");
+        
+        final int pageCount = (getDataRowCount(sq) + pageSize - 1) / pageSize;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("getRowsParallel"));
+        final CompletionService<List<WorksheetRow>> completed = new ExecutorCompletionService<List<WorksheetRow>>(executor);
         
+        return service.new FeedIterator<WorksheetRow>() {
+            private final List<Future<List<WorksheetRow>>> pages = new ArrayList<Future<List<WorksheetRow>>>();
+            private int submitted;
+            private int consumed;
+            private Iterator<WorksheetRow> current;
+            
+            {
+                submitPages();
+            }
+            
+            // keeps a bounded number of pages fetched ahead of the consumer
+            private void submitPages() {
+                while (submitted < pageCount && submitted - consumed < threads * 2) {
+                    final int start = submitted * pageSize + 1; // start-index is 1 based
+                    Callable<List<WorksheetRow>> fetch = new Callable<List<WorksheetRow>>() {
+                        public List<WorksheetRow> call() throws Exception {
+                            WiseUrl url = listQuery(sq, orderby, reverse);
+                            url.startIndex = start;
+                            url.maxResults = pageSize;
+                            return queryRows(RequestEvent.SCAN_ROWS, url, null, null, null).getEntries();
+                        }
+                    };
+                    pages.add(ordered ? executor.submit(fetch) : completed.submit(fetch));
+                    submitted++;
+                }
+            }
+            
+            public WorksheetRow getNextEntry() throws IOException, SpreadsheetsException {
+                while (current == null || !current.hasNext()) {
+                    if (consumed == pageCount) {
+                        close();
+                        return null;
+                    }
+                    
+                    try {
+                        Future<List<WorksheetRow>> page = ordered ? pages.get(consumed) : completed.take();
+                        pages.set(consumed, null); // done with it (in unordered mode it's just a slot)
+                        current = page.get().iterator();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        close();
+                        throw new IOException("interrupted while waiting for a page");
+                    } catch (ExecutionException e) {
+                        close();
+                        if (e.getCause() instanceof IOException)
+                            throw (IOException)e.getCause();
+                        if (e.getCause() instanceof SpreadsheetsException)
+                            throw (SpreadsheetsException)e.getCause();
+                        throw new RuntimeException(e.getCause());
+                    }
+                    
+                    consumed++;
+                    submitPages();
+                }
+                
+                return current.next();
+            }
+            
+            void onClose() {
+                executor.shutdownNow();
+            }
+        };
+    }
+    
+    // all rows, or null if the list feed still has the given etag
+    FeedIterator<WorksheetRow> getRowsIfModified(String feedEtag) throws IOException, SpreadsheetsException {
+        return queryRows(RequestEvent.SCAN_ROWS, listQuery(null, null, false), feedEtag, null, null);
+    }
+    
+    private FeedIterator<WorksheetRow> queryRows(String operation, final WiseUrl url, final String ifNoneMatch, 
+                                                 final RowCache cache, final String cacheKey) 
+                                                 throws IOException, SpreadsheetsException {
         try {
-            return service.new FeedIterator<WorksheetRow>() {
+            return service.new ParsingFeedIterator<WorksheetRow>(operation) {
+                // the rows are collected for the row cache, if the feed is read until the end
+                private List<WorksheetRow> parsedRows = cache == null ? null : new ArrayList<WorksheetRow>();
+                private RowSchema.Interner interner = new RowSchema.Interner();
+                private ListFeedDecoder decoder; // used instead of feedParser if the service has the fast list parser enabled
+                
                 public void init() throws IOException, XmlPullParserException {
                     boolean abortedBecauseNotModified = true;
                     HttpResponse response = null;
                     try {
-                        WiseUrl url = new WiseUrl(listFeed);
-        
-                        url.sq = sq;
-                        if (orderby != null)
-                            url.orderby = "column:" + orderby;
-                        url.reverse = reverse;
-        
                         HttpRequest request = service.wiseRequestFactory.buildGetRequest(url);
                         
-                        if (lastQuery != null) {
-                            request.headers.ifNoneMatch = lastQuery.etag;
+                        if (ifNoneMatch != null) {
+                            request.headers.ifNoneMatch = ifNoneMatch;
                         }
                         
-                        response = request.execute();
+                        response = send(request);
                       
                         etag =  response.headers.etag;
-                        feedParser =
-                            AtomFeedParser.create(response, LIST_FEED_NS, ListFeed.class, ListEntry.class);
+                        if (service.isFastListParserEnabled()) {
+                            decoder = new ListFeedDecoder(service, response.getContent());
+                        } else {
+                            feedParser =
+                                AtomFeedParser.create(response, LIST_FEED_NS, ListFeed.class, ListEntry.class);
+                        }
                         
                         abortedBecauseNotModified = false;
                     } finally {
@@ -330,12 +833,42 @@ public class Worksheet {
                     }
                 }
                 public WorksheetRow parseOne() throws IOException, XmlPullParserException {
-                    ListEntry entry = (ListEntry)feedParser.parseNextEntry();
+                    WorksheetRow row = decoder != null ? decoder.next() : parseListEntry();
     
-                    if (entry == null)
+                    if (row == null) {
+                        if (parsedRows != null)
+                            cache.put(cacheKey, etag, parsedRows);
                         return null;
+                    }
     
-                    return new WorksheetRow(service, entry.etag, entry.id, entry.getEditUrl(), entry.getValues());
+                    if (url.fields != null)
+                        row.setPartial();
+                    
+                    if (parsedRows != null) {
+                        if (parsedRows.size() < cache.getMaxRows())
+                            parsedRows.add(new WorksheetRow(row)); // callers may modify the returned row
+                        else
+                            parsedRows = null; // too large to cache
+                    }
+                    
+                    return row;
+                }
+                private WorksheetRow parseListEntry() throws IOException, XmlPullParserException {
+                    ListEntry entry = (ListEntry)feedParser.parseNextEntry();
+                    
+                    if (entry == null)
+                        return null;
+                    
+                    Map<String, String> values = entry.getValues();
+                    RowSchema schema = interner.schemaFor(values.keySet());
+                    
+                    return new WorksheetRow(service, entry.etag, entry.id, entry.getEditUrl(), 
+                                            schema, interner.toValues(schema, values));
+                }
+                void onClose() {
+                    super.onClose();
+                    if (decoder != null)
+                        decoder.close();
                 }
             };
         } catch (SpreadsheetsException e) {
@@ -347,9 +880,27 @@ public class Worksheet {
         }
     }
     
+    private FeedIterator<WorksheetRow> cachedRows(final RowCache.Entry cached) throws IOException, SpreadsheetsException {
+        return service.new ParsingFeedIterator<WorksheetRow>() {
+            private Iterator<WorksheetRow> rows;
+            
+            public void init() {
+                etag = cached.etag;
+                rows = cached.rows.iterator();
+            }
+            public WorksheetRow parseOne() {
+                if (!rows.hasNext())
+                    return null;
+                
+                return new WorksheetRow(rows.next());
+            }
+        };
+    }
+    
     
     // model classes for ListFeed
     public static class ListFeed {
+        @Key("openSearch:totalResults") public int totalResults;
         @Key("entry") public List<String> entries;
     }
 
@@ -384,8 +935,8 @@ public class Worksheet {
         
         public String getEditUrl() throws XmlPullParserException {
             String editUrl = null;
-            for (ListLink link : links) {
-                if (link.rel.equals("edit")) {
+            for (ListLink link : links == null ? Collections.<ListLink>emptyList() : links) {
+                if ("edit".equals(link.rel)) {
                     editUrl = link.href;
                 }
             }
@@ -401,13 +952,19 @@ public class Worksheet {
     }
     
     
-    // model classes for CellFeed used in batchUpload(..) 
+    // model classes for CellFeed used in batchUpload(..) and addRows(..)
     public static class CellsFeed {
         @Key("entry") public List<CellsEntry> entries;
     }
     public static class CellsEntry {
         @Key("batch:id") public String batchId;
         @Key("batch:status") public CellsBatchStatus batchStatus;
+        @Key("gs:cell") public CellsCell cell;
+    }
+    public static class CellsCell {
+        @Key("@row") public String row;
+        @Key("@col") public String col;
+        @Key("@inputValue") public String inputValue;
     }
     public static class CellsBatchStatus {
         @Key("@code") public String code;
@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import foo.joeledstrom.spreadsheets.SpreadsheetsService.FeedIterator;
+import foo.joeledstrom.spreadsheets.SpreadsheetsService.SpreadsheetsException;
+
+// Local copy of the rows of a worksheet, stored in a memory mapped file so it survives restarts.
+// refresh() only downloads the list feed if its ETag changed since the file was written.
+// getRows(..) filters and orders the stored rows locally, without any network round trip. A RowQuery
+// is evaluated like the server evaluates it, all its conditions are checked locally.
+//
+// Reading is safe from any thread while another one calls refresh(): readers see either the old or the
+// new rows, never a mix.
+//
+// File layout (all strings are an int byte length followed by UTF-8, -1 for null):
+//   magic, version, feed etag,
+//   rows:   id, etag, edit url, value count, (column index, value) * value count
+//   columns: count, name * count
+//   index:  row count, row offset * row count
+//   footer: columns offset, index offset
+public class WorksheetReplica {
+
+    public interface RowFilter {
+        boolean accept(WorksheetRow row);
+    }
+
+    private static final int MAGIC = 0x57535231; // "WSR1"
+    private static final int VERSION = 1;
+
+    private final Worksheet worksheet;
+    private final SpreadsheetsService service;
+    private final File file;
+
+    private volatile State state = new State(null, null, RowSchema.EMPTY, new int[0]);
+
+    // replaced as a whole by refresh(), so readers never see the rows of one file with the offsets of another
+    private static class State {
+        final ByteBuffer buffer;
+        final String feedEtag;
+        final RowSchema schema; // the column dictionary
+        final int[] rowOffsets;
+
+        State(ByteBuffer buffer, String feedEtag, RowSchema schema, int[] rowOffsets) {
+            this.buffer = buffer;
+            this.feedEtag = feedEtag;
+            this.schema = schema;
+            this.rowOffsets = rowOffsets;
+        }
+    }
+
+    WorksheetReplica(Worksheet worksheet, SpreadsheetsService service, File file) throws IOException {
+        this.worksheet = worksheet;
+        this.service = service;
+        this.file = file;
+
+        File old = backupFile();
+        if (!file.exists() && old.exists())
+            old.renameTo(file); // a refresh() died between its two renames
+        if (file.exists())
+            state = load();
+    }
+
+    // Returns true if the worksheet had changed and the replica was rewritten. One refresh at a time, they
+    // share the temporary file.
+    public synchronized boolean refresh() throws IOException, SpreadsheetsException {
+        FeedIterator<WorksheetRow> rows = worksheet.getRowsIfModified(state.feedEtag);
+        if (rows == null)
+            return false; // 304 Not Modified
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            write(rows, tmp);
+        } finally {
+            rows.close();
+        }
+
+        // renameTo can't replace an existing file on some platforms, then the old one is moved out of the
+        // way first, and back if the new one can't take its place either
+        if (!tmp.renameTo(file)) {
+            File old = backupFile();
+            old.delete();
+            if (!file.renameTo(old))
+                throw new IOException("Couldn't replace " + file);
+            if (!tmp.renameTo(file)) {
+                old.renameTo(file);
+                throw new IOException("Couldn't replace " + file);
+            }
+            old.delete();
+        }
+
+        state = load();
+        return true;
+    }
+
+    public String getEtag() {
+        return state.feedEtag;
+    }
+
+    public int getRowCount() {
+        return state.rowOffsets.length;
+    }
+
+    public Set<String> getColumnNames() {
+        return state.schema.getNames();
+    }
+
+    public WorksheetRow getRow(int index) {
+        return getRow(state, index);
+    }
+
+    private WorksheetRow getRow(State state, int index) {
+        RowSchema schema = state.schema;
+        ByteBuffer in = state.buffer.duplicate();
+        in.position(state.rowOffsets[index]);
+
+        String id = readString(in);
+        String etag = readString(in);
+        String editUrl = readString(in);
+
+        int count = in.getInt();
+        String[] values = new String[schema.size()];
+        for (int i = 0; i < count; i++) {
+            int column = in.getInt();
+            values[column] = readString(in);
+        }
+
+        return new WorksheetRow(service, etag, id, editUrl, schema, values);
+    }
+
+    public List<WorksheetRow> getRows() {
+        return getRows(null, null, false);
+    }
+
+    // ordered by compareValues(..): empty values, then numbers, then text
+    public List<WorksheetRow> getRows(RowFilter filter, String orderby, boolean reverse) {
+        State state = this.state;
+        List<WorksheetRow> rows = new ArrayList<WorksheetRow>();
+
+        for (int i = 0; i < state.rowOffsets.length; i++) {
+            WorksheetRow row = getRow(state, i);
+            if (filter == null || filter.accept(row))
+                rows.add(row);
+        }
+
+        sort(rows, orderby, reverse);
+        return rows;
+    }
+
+    // all the conditions of the query (whether the server could evaluate them or not), its order and limit
+    public List<WorksheetRow> getRows(final RowQuery query) {
+        List<WorksheetRow> rows = getRows(new RowFilter() {
+            public boolean accept(WorksheetRow row) {
+                return query.matches(row);
+            }
+        }, null, false);
+
+        sort(rows, query.getOrderby(), query.isReverse());
+        if (query.getLimit() != null && rows.size() > query.getLimit())
+            rows = new ArrayList<WorksheetRow>(rows.subList(0, query.getLimit()));
+        return rows;
+    }
+
+    private static void sort(List<WorksheetRow> rows, final String orderby, boolean reverse) {
+        if (orderby != null) {
+            Collections.sort(rows, new Comparator<WorksheetRow>() {
+                public int compare(WorksheetRow a, WorksheetRow b) {
+                    return compareValues(a.getValue(orderby), b.getValue(orderby));
+                }
+            });
+        }
+        if (reverse)
+            Collections.reverse(rows);
+    }
+
+    // A total order over cell values: empty (or missing) values first, then numbers by their value, then
+    // all other values as case insensitive text. Mixing numeric and text comparisons for each pair would
+    // not be transitive ("9" < "10" < "1a" < "9").
+    static int compareValues(String a, String b) {
+        boolean aEmpty = a == null || a.length() == 0;
+        boolean bEmpty = b == null || b.length() == 0;
+        if (aEmpty || bEmpty)
+            return aEmpty ? (bEmpty ? 0 : -1) : 1;
+
+        Double x = parseNumber(a);
+        Double y = parseNumber(b);
+        if (x != null && y != null)
+            return Double.compare(x, y);
+        if (x != null || y != null)
+            return x != null ? -1 : 1;
+        return a.compareToIgnoreCase(b);
+    }
+
+    // Null if the value isn't a number. Only plain decimals with an optional sign and exponent ("-1.5",
+    // ".5", "2e3") count, not everything Double.valueOf takes: "NaN", "Infinity", "12f", "5d" and hex are text
+    // in a spreadsheet.
+    static Double parseNumber(String value) {
+        int length = value.length();
+        int i = 0;
+        if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-'))
+            i++;
+
+        int digits = 0;
+        while (i < length && isDigit(value.charAt(i))) {
+            i++;
+            digits++;
+        }
+        if (i < length && value.charAt(i) == '.') {
+            i++;
+            while (i < length && isDigit(value.charAt(i))) {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0)
+            return null;
+
+        if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+            i++;
+            if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-'))
+                i++;
+            int exponentDigits = 0;
+            while (i < length && isDigit(value.charAt(i))) {
+                i++;
+                exponentDigits++;
+            }
+            if (exponentDigits == 0)
+                return null;
+        }
+        if (i != length)
+            return null;
+
+        return Double.valueOf(value);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+
+    private void write(FeedIterator<WorksheetRow> rows, File target) throws IOException, SpreadsheetsException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target)));
+        try {
+            Map<String, Integer> columnIndexes = new HashMap<String, Integer>();
+            List<String> columnNames = new ArrayList<String>();
+            int[] offsets = new int[64];
+            int rowCount = 0;
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, rows.etag);
+
+            while (true) {
+                WorksheetRow row = rows.getNextEntry();
+                if (row == null)
+                    break;
+
+                if (rowCount == offsets.length) {
+                    int[] grown = new int[offsets.length * 2];
+                    System.arraycopy(offsets, 0, grown, 0, offsets.length);
+                    offsets = grown;
+                }
+                offsets[rowCount++] = out.size();
+
+                writeString(out, row.getId());
+                writeString(out, row.getEtag());
+                writeString(out, row.getEditUrl());
+
+                Set<String> names = row.getColumnNames();
+                out.writeInt(names.size());
+                for (String name : names) {
+                    Integer index = columnIndexes.get(name);
+                    if (index == null) {
+                        index = columnNames.size();
+                        columnIndexes.put(name, index);
+                        columnNames.add(name);
+                    }
+                    out.writeInt(index);
+                    writeString(out, row.getValue(name));
+                }
+            }
+
+            int columnsOffset = out.size();
+            out.writeInt(columnNames.size());
+            for (String name : columnNames)
+                writeString(out, name);
+
+            int indexOffset = out.size();
+            out.writeInt(rowCount);
+            for (int i = 0; i < rowCount; i++)
+                out.writeInt(offsets[i]);
+
+            out.writeInt(columnsOffset);
+            out.writeInt(indexOffset);
+        } finally {
+            out.close();
+        }
+    }
+
+    private File backupFile() {
+        return new File(file.getPath() + ".old");
+    }
+
+    private State load() throws IOException {
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+
+        ByteBuffer in = buffer.duplicate();
+        if (in.limit() < 16 || in.getInt() != MAGIC || in.getInt() != VERSION)
+            throw new IOException("Not a worksheet replica: " + file);
+
+        String feedEtag = readString(in);
+
+        int columnsOffset = buffer.getInt(buffer.limit() - 8);
+        int indexOffset = buffer.getInt(buffer.limit() - 4);
+
+        in.position(columnsOffset);
+        String[] names = new String[in.getInt()];
+        for (int i = 0; i < names.length; i++)
+            names[i] = readString(in).intern();
+
+        in.position(indexOffset);
+        int[] offsets = new int[in.getInt()];
+        for (int i = 0; i < offsets.length; i++)
+            offsets[i] = in.getInt();
+
+        return new State(buffer, feedEtag, new RowSchema(names), offsets);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0)
+            return null;
+
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // UTF-8 is always supported
+        }
+    }
+}
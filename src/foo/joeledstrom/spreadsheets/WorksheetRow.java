@@ -17,15 +17,14 @@
 package foo.joeledstrom.spreadsheets;
 
 import java.io.IOException;
-import java.util.Formatter;
-import java.util.Locale;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
 import org.xmlpull.v1.XmlPullParserException;
 
 import com.google.api.client.googleapis.GoogleHeaders;
-import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.HttpContent;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpResponse;
@@ -39,24 +38,68 @@ public class WorksheetRow {
 
 
     private final SpreadsheetsService service;
-    private Map<String, String> values;
+    private RowSchema schema; // shared with the other rows of the same feed
+    private String[] values;  // indexed like schema, null for missing columns
     private String editUrl;
     private boolean dirty;
     private String id;
     private String etag;
+    private boolean partial; // only some columns were read (column projection)
 
     
     public String getValue(String columnName) {
-        return values.get(columnName);
+        int index = schema.indexOf(columnName);
+        return index == -1 ? null : values[index];
     }
     
     public void setValue(String columnName, String value) {
         dirty = true;
-        values.put(columnName, value);
+        
+        int index = schema.indexOf(columnName);
+        if (index == -1) {
+            // new column, this row gets its own schema
+            schema = schema.with(columnName);
+            index = schema.size() - 1;
+        }
+        if (index >= values.length) {
+            String[] grown = new String[schema.size()];
+            System.arraycopy(values, 0, grown, 0, values.length);
+            values = grown;
+        }
+        values[index] = value;
     }
 
     public Set<String> getColumnNames() {
-        return values.keySet();
+        for (int i = 0; i < schema.size(); i++) {
+            if (i >= values.length || values[i] == null)
+                return presentColumnNames();
+        }
+        return schema.getNames();
+    }
+    
+    private Set<String> presentColumnNames() {
+        Set<String> names = new LinkedHashSet<String>();
+        for (int i = 0; i < schema.size() && i < values.length; i++) {
+            if (values[i] != null)
+                names.add(schema.getName(i));
+        }
+        return Collections.unmodifiableSet(names);
+    }
+
+    void setPartial() {
+        partial = true;
+    }
+    
+    String getId() {
+        return id;
+    }
+    
+    String getEtag() {
+        return etag;
+    }
+    
+    String getEditUrl() {
+        return editUrl;
     }
 
     public boolean commitChanges() throws IOException, SpreadsheetsException {
@@ -79,7 +122,7 @@ public class WorksheetRow {
     private boolean delete(final boolean useETag) throws IOException, SpreadsheetsException {
         
         try {
-            service.new Request<Void>() {
+            service.new Request<Void>(RequestEvent.DELETE) {
                 public Void run() throws IOException, XmlPullParserException {
                     WiseUrl url = new WiseUrl(editUrl);
                     HttpRequest request = service.wiseRequestFactory.buildDeleteRequest(url);
@@ -89,7 +132,7 @@ public class WorksheetRow {
                     else
                         request.headers.ifMatch = "*";
                     
-                    request.execute().ignore();
+                    send(request).ignore();
                     
                     return null;
                 }
@@ -102,6 +145,7 @@ public class WorksheetRow {
             }
         }
         
+        service.rowDeleted(id);
         return true;
     }
     private boolean commitChanges(final boolean useETag) throws IOException, SpreadsheetsException {
@@ -109,28 +153,20 @@ public class WorksheetRow {
         if (!dirty)
             return true;
         
-        final StringBuilder builder = new StringBuilder();
-        Formatter formatter = new Formatter(builder, Locale.US); 
+        if (partial)
+            throw new IllegalStateException("Row was read with a column projection, committing it would clear the other columns");
         
-        builder.append("<entry xmlns=\"http://www.w3.org/2005/Atom\" " +
-                "xmlns:gsx=\"http://schemas.google.com/spreadsheets/2006/extended\">");
-        
-        
-        for (Map.Entry<String, String> value : values.entrySet()) 
-            formatter.format("<gsx:%1$s>%2$s</gsx:%1$s>", Utils.encodeXML(value.getKey()), 
-            										      Utils.encodeXML(value.getValue()));
-        builder.append("</entry>");
+        final HttpContent content = changesContent();
        
         WorksheetRow updatedRow;
         try {
-            updatedRow = service.new Request<WorksheetRow>() {
+            updatedRow = service.new Request<WorksheetRow>(RequestEvent.COMMIT_CHANGES) {
                 public WorksheetRow run() throws IOException, XmlPullParserException {
                     
                     AtomParser atomParser = new AtomParser();
                     atomParser.namespaceDictionary = Worksheet.LIST_FEED_NS;
                     
                     WiseUrl url = new WiseUrl(editUrl);
-                    HttpContent content = new ByteArrayContent(builder.toString());        
 
                     HttpRequest request = service.wiseRequestFactory.buildPutRequest(url, content);
                     request.enableGZipContent = false;
@@ -145,7 +181,7 @@ public class WorksheetRow {
                     else
                         headers.ifMatch = "*";
             
-                    HttpResponse response = request.execute();
+                    HttpResponse response = send(request);
                     
                     ListEntry entry = atomParser.parse(response, ListEntry.class);
                     
@@ -157,9 +193,11 @@ public class WorksheetRow {
             editUrl = updatedRow.editUrl;
             etag = updatedRow.etag;
             id = updatedRow.id;
+            schema = updatedRow.schema;
             values = updatedRow.values;
             dirty = false;
             
+            service.rowStored(this);
             return true;
         } catch (SpreadsheetsException e) {
             if (e.getMessage().equals("412 Precondition Failed")) {
@@ -170,14 +208,56 @@ public class WorksheetRow {
         }
     }
 
+    // list feed entry with the current values of this row
+    HttpContent changesContent() {
+        return new StreamingXmlContent() {
+            void writeXml(AtomWriter out) throws IOException {
+                out.raw("<entry xmlns=\"http://www.w3.org/2005/Atom\" " +
+                        "xmlns:gsx=\"http://schemas.google.com/spreadsheets/2006/extended\">");
+                
+                for (int i = 0; i < schema.size() && i < values.length; i++) {
+                    if (values[i] != null)
+                        out.gsx(schema.getName(i), values[i]);
+                }
+                out.raw("</entry>");
+            }
+        };
+    }
+    
     WorksheetRow(SpreadsheetsService service, String eTag, String id, String editUrl, Map<String, String> values) {
+        this(service, eTag, id, editUrl, RowSchema.of(values.keySet()), null);
+        this.values = schema.toValues(values);
+    }
+    
+    WorksheetRow(SpreadsheetsService service, String eTag, String id, String editUrl, RowSchema schema, String[] values) {
         this.service = service;
         this.id = id;
         this.editUrl = editUrl;
+        this.schema = schema;
         this.values = values;
         this.etag = eTag;
     }
 
+    // Takes the new ETag (and edit url) from a copy of this row that was committed. If this row wasn't
+    // edited since the copy was taken, it also takes the values the server returned and is clean again.
+    void committedAs(WorksheetRow committed, boolean editedSince) {
+        editUrl = committed.editUrl;
+        etag = committed.etag;
+        id = committed.id;
+        if (!editedSince) {
+            schema = committed.schema;
+            values = committed.values;
+            dirty = false;
+        }
+    }
+
+    // copy with its own values, used to hand out rows from the row cache
+    WorksheetRow(WorksheetRow row) {
+        this(row.service, row.etag, row.id, row.editUrl, row.schema, row.values.clone());
+        this.dirty = row.dirty;
+        this.partial = row.partial;
+    }
+
 
     
 
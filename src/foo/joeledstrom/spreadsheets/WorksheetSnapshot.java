@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import foo.joeledstrom.spreadsheets.SpreadsheetsService.FeedIterator;
+import foo.joeledstrom.spreadsheets.SpreadsheetsService.SpreadsheetsException;
+
+// All rows of a worksheet held in memory, with hash and sorted indexes on chosen columns for lookups
+// without a round trip:
+//
+//   WorksheetSnapshot snapshot = worksheet.openSnapshot();
+//   snapshot.createHashIndex("Customer Id");
+//   List<WorksheetRow> rows = snapshot.lookup("Customer Id", "4711");
+//
+// Rows written through the same service (addRow(..), commitChanges(), applyChanges(), commitDelete() and
+// applyDelete()) are applied to the snapshot and its indexes as soon as they succeed. Changes by other
+// clients, and rows appended with addRows(..) (the batch feed doesn't return the new rows), are only seen
+// after refresh().
+//
+// Values are matched like sq does: numbers as numbers ("7" = "7.0"), everything else as case insensitive
+// text, and missing values as "". The returned rows are copies that can be changed and committed.
+//
+// close() a snapshot that is no longer needed: until then the service holds on to it (and all its rows)
+// to pass it the writes.
+public class WorksheetSnapshot {
+
+    private static final Comparator<String> VALUE_ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            return WorksheetReplica.compareValues(a, b);
+        }
+    };
+
+    private final Worksheet worksheet;
+    private final SpreadsheetsService service;
+    private final String rowIdPrefix;
+    private final SpreadsheetsService.RowObserver observer;
+
+    private final Lock refreshLock = new ReentrantLock(); // one refresh() at a time
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // guarded by lock
+    private Map<String, WorksheetRow> written; // during refresh(), by row id, null values for deleted rows
+    private Map<String, WorksheetRow> rows = new LinkedHashMap<String, WorksheetRow>(); // by row id, in feed order
+    private final Map<String, Map<String, List<WorksheetRow>>> hashIndexes = new HashMap<String, Map<String, List<WorksheetRow>>>();
+    private final Map<String, SortedMap<String, List<WorksheetRow>>> sortedIndexes =
+        new HashMap<String, SortedMap<String, List<WorksheetRow>>>();
+
+    WorksheetSnapshot(Worksheet worksheet, SpreadsheetsService service, String listFeed) throws IOException, SpreadsheetsException {
+        this.worksheet = worksheet;
+        this.service = service;
+        this.rowIdPrefix = listFeed + "/";
+
+        // before loading, or writes finishing during the load might be missed
+        observer = new SpreadsheetsService.RowObserver() {
+            public void rowStored(WorksheetRow row) {
+                if (row.getId() != null && row.getId().startsWith(rowIdPrefix))
+                    store(new WorksheetRow(row));
+            }
+            public void rowDeleted(String id) {
+                if (id != null && id.startsWith(rowIdPrefix))
+                    remove(id);
+            }
+        };
+        service.addRowObserver(observer);
+        try {
+            refresh();
+        } catch (IOException e) {
+            close();
+            throw e;
+        } catch (SpreadsheetsException e) {
+            close();
+            throw e;
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // reads all rows again and rebuilds the indexes
+    public void refresh() throws IOException, SpreadsheetsException {
+        refreshLock.lock();
+        try {
+            lock.writeLock().lock();
+            try {
+                written = new HashMap<String, WorksheetRow>();
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            Map<String, WorksheetRow> loaded = new LinkedHashMap<String, WorksheetRow>();
+            FeedIterator<WorksheetRow> feed = worksheet.getRows();
+            try {
+                for (WorksheetRow row : feed.getEntries())
+                    loaded.put(row.getId(), row);
+            } finally {
+                feed.close();
+            }
+
+            replace(loaded);
+        } finally {
+            lock.writeLock().lock();
+            try {
+                written = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            refreshLock.unlock();
+        }
+    }
+
+    private void replace(Map<String, WorksheetRow> loaded) {
+        lock.writeLock().lock();
+        try {
+            // the feed may have been read before or after these writes, they are at least as new
+            for (Map.Entry<String, WorksheetRow> write : written.entrySet()) {
+                if (write.getValue() == null)
+                    loaded.remove(write.getKey());
+                else
+                    loaded.put(write.getKey(), write.getValue());
+            }
+
+            rows = loaded;
+            for (Map.Entry<String, Map<String, List<WorksheetRow>>> index : hashIndexes.entrySet())
+                index.setValue(buildIndex(index.getKey(), new HashMap<String, List<WorksheetRow>>()));
+            for (Map.Entry<String, SortedMap<String, List<WorksheetRow>>> index : sortedIndexes.entrySet())
+                index.setValue(buildIndex(index.getKey(), new TreeMap<String, List<WorksheetRow>>(VALUE_ORDER)));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // stops following the writes of the service
+    public void close() {
+        service.removeRowObserver(observer);
+    }
+
+    public int getRowCount() {
+        lock.readLock().lock();
+        try {
+            return rows.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<WorksheetRow> getRows() {
+        lock.readLock().lock();
+        try {
+            return copies(rows.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    // for lookup(..), column as written in the header row or in list feed form
+    public void createHashIndex(String column) {
+        String name = Worksheet.toListFeedName(column);
+        lock.writeLock().lock();
+        try {
+            if (!hashIndexes.containsKey(name))
+                hashIndexes.put(name, buildIndex(name, new HashMap<String, List<WorksheetRow>>()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // for range(..) and also lookup(..)
+    public void createSortedIndex(String column) {
+        String name = Worksheet.toListFeedName(column);
+        lock.writeLock().lock();
+        try {
+            if (!sortedIndexes.containsKey(name))
+                sortedIndexes.put(name, buildIndex(name, new TreeMap<String, List<WorksheetRow>>(VALUE_ORDER)));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void dropIndexes(String column) {
+        String name = Worksheet.toListFeedName(column);
+        lock.writeLock().lock();
+        try {
+            hashIndexes.remove(name);
+            sortedIndexes.remove(name);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // rows whose value in column equals value, in no particular order
+    public List<WorksheetRow> lookup(String column, String value) {
+        String name = Worksheet.toListFeedName(column);
+        lock.readLock().lock();
+        try {
+            List<WorksheetRow> found;
+            Map<String, List<WorksheetRow>> hashIndex = hashIndexes.get(name);
+            if (hashIndex != null) {
+                found = hashIndex.get(hashKey(value));
+            } else {
+                SortedMap<String, List<WorksheetRow>> sortedIndex = sortedIndexes.get(name);
+                if (sortedIndex == null)
+                    throw new IllegalStateException("No index on column: " + column);
+                found = sortedIndex.get(value == null ? "" : value);
+            }
+            return found == null ? Collections.<WorksheetRow>emptyList() : copies(found);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Rows with from <= value <= to (or < if not inclusive) in column, ordered by the value.
+    // from or to can be null for no bound.
+    public List<WorksheetRow> range(String column, String from, boolean fromInclusive, String to, boolean toInclusive) {
+        String name = Worksheet.toListFeedName(column);
+        lock.readLock().lock();
+        try {
+            SortedMap<String, List<WorksheetRow>> index = sortedIndexes.get(name);
+            if (index == null)
+                throw new IllegalStateException("No sorted index on column: " + column);
+
+            if (from != null)
+                index = index.tailMap(from);
+
+            List<WorksheetRow> found = new ArrayList<WorksheetRow>();
+            for (Map.Entry<String, List<WorksheetRow>> equal : index.entrySet()) {
+                if (from != null && !fromInclusive && VALUE_ORDER.compare(equal.getKey(), from) == 0)
+                    continue;
+                if (to != null) {
+                    int order = VALUE_ORDER.compare(equal.getKey(), to);
+                    if (order > 0 || (order == 0 && !toInclusive))
+                        break;
+                }
+                found.addAll(copies(equal.getValue()));
+            }
+            return found;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    private void store(WorksheetRow row) {
+        lock.writeLock().lock();
+        try {
+            if (written != null)
+                written.put(row.getId(), row);
+            WorksheetRow old = rows.put(row.getId(), row);
+            if (old != null)
+                unindex(old);
+            for (Map.Entry<String, Map<String, List<WorksheetRow>>> index : hashIndexes.entrySet())
+                add(index.getValue(), hashKey(row.getValue(index.getKey())), row);
+            for (Map.Entry<String, SortedMap<String, List<WorksheetRow>>> index : sortedIndexes.entrySet())
+                add(index.getValue(), sortKey(row.getValue(index.getKey())), row);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void remove(String id) {
+        lock.writeLock().lock();
+        try {
+            if (written != null)
+                written.put(id, null);
+            WorksheetRow old = rows.remove(id);
+            if (old != null)
+                unindex(old);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void unindex(WorksheetRow row) {
+        for (Map.Entry<String, Map<String, List<WorksheetRow>>> index : hashIndexes.entrySet())
+            remove(index.getValue(), hashKey(row.getValue(index.getKey())), row);
+        for (Map.Entry<String, SortedMap<String, List<WorksheetRow>>> index : sortedIndexes.entrySet())
+            remove(index.getValue(), sortKey(row.getValue(index.getKey())), row);
+    }
+
+    private <M extends Map<String, List<WorksheetRow>>> M buildIndex(String column, M index) {
+        boolean sorted = index instanceof SortedMap<?, ?>;
+        for (WorksheetRow row : rows.values()) {
+            String value = row.getValue(column);
+            add(index, sorted ? sortKey(value) : hashKey(value), row);
+        }
+        return index;
+    }
+
+    private static void add(Map<String, List<WorksheetRow>> index, String key, WorksheetRow row) {
+        List<WorksheetRow> equal = index.get(key);
+        if (equal == null) {
+            equal = new ArrayList<WorksheetRow>(1);
+            index.put(key, equal);
+        }
+        equal.add(row);
+    }
+
+    private static void remove(Map<String, List<WorksheetRow>> index, String key, WorksheetRow row) {
+        List<WorksheetRow> equal = index.get(key);
+        if (equal == null)
+            return;
+        for (int i = 0; i < equal.size(); i++) {
+            if (equal.get(i) == row) {
+                equal.remove(i);
+                break;
+            }
+        }
+        if (equal.isEmpty())
+            index.remove(key);
+    }
+
+    // equal for the values compareValues(..) finds equal
+    private static String hashKey(String value) {
+        if (value == null)
+            return "";
+        Double number = WorksheetReplica.parseNumber(value);
+        if (number != null)
+            return number.toString();
+
+        // folded like compareToIgnoreCase does, char by char and without the default locale
+        char[] folded = new char[value.length()];
+        for (int i = 0; i < folded.length; i++)
+            folded[i] = Character.toLowerCase(Character.toUpperCase(value.charAt(i)));
+        return new String(folded);
+    }
+
+    private static String sortKey(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static List<WorksheetRow> copies(Iterable<WorksheetRow> rows) {
+        List<WorksheetRow> copies = new ArrayList<WorksheetRow>();
+        for (WorksheetRow row : rows)
+            copies.add(new WorksheetRow(row));
+        return copies;
+    }
+}
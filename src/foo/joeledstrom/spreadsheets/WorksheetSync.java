@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import foo.joeledstrom.spreadsheets.SpreadsheetsService.FeedIterator;
+import foo.joeledstrom.spreadsheets.SpreadsheetsService.SpreadsheetsException;
+
+// Follows the changes of a worksheet as row events. Every poll asks for the list feed with the ETag of
+// the last one, so an unchanged worksheet costs a 304 and nothing else. When it did change, the rows are
+// compared by id and gd:etag with the previous poll, while they're parsed, and only the rows that were
+// inserted, updated or deleted are passed to the Listener. Only the id and ETag of every row are kept.
+//
+// The first poll reports every row as inserted. If a poll fails half way, the events it already passed
+// on are passed on again by the next poll (at least once delivery).
+//
+// start() polls on a timer: every minIntervalMillis while the worksheet keeps changing, and twice as long
+// after each poll without changes (or with an error), up to maxIntervalMillis.
+public class WorksheetSync {
+
+    public interface Listener {
+        void onInserted(WorksheetRow row);
+        void onUpdated(WorksheetRow row);
+        void onDeleted(String rowId);
+        // only for polls run by the timer, poll() throws instead
+        void onError(Exception e);
+    }
+
+    private final Worksheet worksheet;
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    private final Listener listener;
+
+    private final Object pollLock = new Object();
+    private String feedEtag; // guarded by pollLock
+    private Map<String, String> rowEtags = new HashMap<String, String>(); // row id -> gd:etag, guarded by pollLock
+
+    private final Object timerLock = new Object();
+    private ScheduledExecutorService timer; // guarded by timerLock
+    private ScheduledFuture<?> scheduledPoll; // guarded by timerLock
+    private long intervalMillis; // guarded by timerLock
+
+    WorksheetSync(Worksheet worksheet, long minIntervalMillis, long maxIntervalMillis, Listener listener) {
+        if (minIntervalMillis < 1 || maxIntervalMillis < minIntervalMillis)
+            throw new IllegalArgumentException("intervals must satisfy 1 <= min <= max");
+
+        this.worksheet = worksheet;
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        this.listener = listener;
+        this.intervalMillis = minIntervalMillis;
+    }
+
+    // Polls once on the calling thread, the events are passed to the listener before it returns.
+    // Returns false if the worksheet hadn't changed.
+    public boolean poll() throws IOException, SpreadsheetsException {
+        synchronized (pollLock) {
+            FeedIterator<WorksheetRow> rows = worksheet.getRowsIfModified(feedEtag);
+            if (rows == null)
+                return false; // 304 Not Modified
+
+            Map<String, String> previous = rowEtags;
+            Map<String, String> current = new HashMap<String, String>(previous.size() * 4 / 3 + 1);
+            boolean changed = false;
+            try {
+                while (true) {
+                    WorksheetRow row = rows.getNextEntry();
+                    if (row == null)
+                        break;
+
+                    String id = row.getId();
+                    String etag = row.getEtag();
+                    current.put(id, etag);
+
+                    if (!previous.containsKey(id)) {
+                        changed = true;
+                        listener.onInserted(row);
+                    } else if (etag == null || !etag.equals(previous.get(id))) {
+                        changed = true;
+                        listener.onUpdated(row);
+                    }
+                }
+            } finally {
+                rows.close();
+            }
+
+            for (String id : previous.keySet()) {
+                if (!current.containsKey(id)) {
+                    changed = true;
+                    listener.onDeleted(id);
+                }
+            }
+
+            rowEtags = current;
+            feedEtag = rows.etag;
+
+            // the feed ETag also changes for edits that don't touch any row, eg. of the header
+            return changed;
+        }
+    }
+
+    public int getRowCount() {
+        synchronized (pollLock) {
+            return rowEtags.size();
+        }
+    }
+
+    // polls on a background thread until close()
+    public void start() {
+        synchronized (timerLock) {
+            if (timer != null)
+                return;
+            timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("WorksheetSync"));
+            intervalMillis = minIntervalMillis;
+            schedule(0);
+        }
+    }
+
+    // the time until the next poll of the timer
+    public long getIntervalMillis() {
+        synchronized (timerLock) {
+            return intervalMillis;
+        }
+    }
+
+    public void close() {
+        synchronized (timerLock) {
+            if (timer == null)
+                return;
+            if (scheduledPoll != null)
+                scheduledPoll.cancel(false);
+            timer.shutdown();
+            timer = null;
+        }
+    }
+
+    private void schedule(long delayMillis) {
+        scheduledPoll = timer.schedule(new Runnable() {
+            public void run() {
+                pollFromTimer();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void pollFromTimer() {
+        boolean changed = false;
+        try {
+            changed = poll();
+        } catch (Exception e) {
+            listener.onError(e);
+        } finally {
+            synchronized (timerLock) {
+                if (timer != null) {
+                    intervalMillis = changed ? minIntervalMillis : Math.min(maxIntervalMillis, intervalMillis * 2);
+                    schedule(intervalMillis);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2011 Joel Edström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.joeledstrom.spreadsheets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import foo.joeledstrom.spreadsheets.SpreadsheetsService.SpreadsheetsException;
+
+// Buffers edits to rows of one worksheet and writes them back in batches.
+// Repeated edits of the same row (or cell) are merged, only the latest values are sent.
+// The buffer is flushed when it holds maxRows dirty rows, when the oldest edit is older than maxDelayMillis,
+// or when flush() / close() is called. Every row is written with its own ETag (like commitChanges()),
+// rows that were changed by someone else are not overwritten, they are returned from flush() or
+// reported to the Listener when the flush was triggered by the timer.
+//
+// A flush writes copies of the rows taken when it starts, so rows can be edited while it's running (the
+// new edits are written by the next flush). Only one flush runs at a time, setValue(..) waits for it only
+// when it has to flush a full buffer itself.
+public class WriteBehindSession {
+
+    public interface Listener {
+        void onConflicts(List<WorksheetRow> rows);
+        void onError(Exception e);
+    }
+
+    private static final int MAX_IN_FLIGHT = 4;
+
+    private final int maxRows;
+    private final long maxDelayMillis;
+    private final Listener listener;
+
+    private final Object lock = new Object();
+    private final Object flushLock = new Object(); // held while a flush is writing, taken before lock
+    private final Map<WorksheetRow, Boolean> dirtyRows = new IdentityHashMap<WorksheetRow, Boolean>(); // guarded by lock
+    private final List<WorksheetRow> dirtyOrder = new ArrayList<WorksheetRow>(); // guarded by lock
+    private ScheduledFuture<?> scheduledFlush; // guarded by lock
+    private boolean closed; // guarded by lock
+
+    private final ScheduledExecutorService timer =
+        Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("WriteBehindSession-timer"));
+    private final ExecutorService committers =
+        Executors.newFixedThreadPool(MAX_IN_FLIGHT, new DaemonThreadFactory("WriteBehindSession-commit"));
+
+    WriteBehindSession(int maxRows, long maxDelayMillis, Listener listener) {
+        if (maxRows < 1)
+            throw new IllegalArgumentException("maxRows must be at least 1");
+
+        this.maxRows = maxRows;
+        this.maxDelayMillis = maxDelayMillis;
+        this.listener = listener;
+    }
+
+    // may flush on the calling thread if the buffer is full, conflicts are then returned (otherwise an empty list)
+    public List<WorksheetRow> setValue(WorksheetRow row, String columnName, String value)
+                                       throws IOException, SpreadsheetsException {
+        synchronized (lock) {
+            if (closed)
+                throw new IllegalStateException("session is closed");
+
+            row.setValue(columnName, value);
+            buffer(row);
+
+            if (dirtyOrder.size() < maxRows)
+                return Collections.emptyList();
+        }
+        return flush();
+    }
+
+    public int getPendingRowCount() {
+        synchronized (lock) {
+            return dirtyOrder.size();
+        }
+    }
+
+    // writes all buffered rows, returns the rows that failed their ETag precondition (their edits are kept
+    // in the row objects, so the caller can re-fetch, merge and retry)
+    public List<WorksheetRow> flush() throws IOException, SpreadsheetsException {
+        // one at a time, so the next write of a row uses the ETag its last write returned
+        synchronized (flushLock) {
+            List<WorksheetRow> rows;
+            List<WorksheetRow> copies;
+            synchronized (lock) {
+                if (scheduledFlush != null) {
+                    scheduledFlush.cancel(false);
+                    scheduledFlush = null;
+                }
+
+                if (dirtyOrder.size() == 0)
+                    return Collections.emptyList();
+
+                rows = new ArrayList<WorksheetRow>(dirtyOrder);
+                dirtyOrder.clear();
+                dirtyRows.clear();
+
+                copies = new ArrayList<WorksheetRow>(rows.size());
+                for (WorksheetRow row : rows)
+                    copies.add(new WorksheetRow(row));
+            }
+
+            return commitAll(rows, copies);
+        }
+    }
+
+    public List<WorksheetRow> close() throws IOException, SpreadsheetsException {
+        try {
+            return flush();
+        } finally {
+            synchronized (lock) {
+                closed = true;
+                if (scheduledFlush != null) {
+                    scheduledFlush.cancel(false); // scheduled again if the flush failed
+                    scheduledFlush = null;
+                }
+            }
+            timer.shutdown();
+            committers.shutdown();
+        }
+    }
+
+    private void flushFromTimer() {
+        try {
+            List<WorksheetRow> conflicts = flush();
+            if (conflicts.size() != 0 && listener != null)
+                listener.onConflicts(conflicts);
+        } catch (Exception e) {
+            if (listener != null)
+                listener.onError(e);
+        }
+    }
+
+    // called with lock held
+    private void buffer(WorksheetRow row) {
+        if (dirtyRows.put(row, Boolean.TRUE) == null)
+            dirtyOrder.add(row);
+
+        if (scheduledFlush == null && !closed) {
+            scheduledFlush = timer.schedule(new Runnable() {
+                public void run() {
+                    flushFromTimer();
+                }
+            }, maxDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // commits the copies, and updates the rows they were taken from
+    private List<WorksheetRow> commitAll(List<WorksheetRow> rows, List<WorksheetRow> copies)
+                                         throws IOException, SpreadsheetsException {
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(copies.size());
+
+        for (final WorksheetRow copy : copies) {
+            results.add(committers.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    return copy.commitChanges();
+                }
+            }));
+        }
+
+        List<WorksheetRow> conflicts = new ArrayList<WorksheetRow>();
+        Exception failure = null;
+
+        for (int i = 0; i < rows.size(); i++) {
+            WorksheetRow row = rows.get(i);
+            try {
+                boolean committed = results.get(i).get();
+                synchronized (lock) {
+                    if (committed)
+                        row.committedAs(copies.get(i), dirtyRows.containsKey(row));
+                    else
+                        conflicts.add(row); // its edits are still in it
+                }
+            } catch (ExecutionException e) {
+                // keep the row buffered so a later flush retries it
+                synchronized (lock) {
+                    buffer(row);
+                }
+                if (failure == null && e.getCause() instanceof Exception)
+                    failure = (Exception)e.getCause();
+            } catch (InterruptedException e) {
+                // the rows that weren't waited for are buffered again, their writes may or may not have happened
+                synchronized (lock) {
+                    for (int j = i; j < rows.size(); j++)
+                        buffer(rows.get(j));
+                }
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while flushing");
+            }
+        }
+
+        if (failure instanceof SpreadsheetsException)
+            throw (SpreadsheetsException)failure;
+        if (failure instanceof IOException)
+            throw (IOException)failure;
+        if (failure != null)
+            throw new RuntimeException(failure);
+
+        return conflicts;
+    }
+}